@@ -0,0 +1,51 @@
+import java.io.BufferedReader;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// Measures commands per second for a generated script run in batch mode.
+// Usage: java BatchBenchmark [lines]
+public class BatchBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int lines = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        Path dir = Files.createTempDirectory("batchbench");
+        CLI.session().workingDirectory = dir.toFile();
+        Fixtures.textFile(dir, "small.txt", 2048);
+        Fixtures.wideDirectory(dir, "wide", 50);
+        Files.createDirectory(dir.resolve("sub"));
+
+        String[] templates = {
+                "pwd",
+                "ls wide",
+                "cat small.txt | sort",
+                "touch scratch%d.txt ; rm scratch%d.txt",
+                "cd sub && cd ..",
+                "mkdir made%d && rmdir made%d",
+                "ls -a wide | sort -r > listing.txt",
+        };
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            script.append(templates[i % templates.length].replace("%d", Integer.toString(i % 100))).append('\n');
+        }
+
+        // Console output is thrown away so the terminal does not dominate the timing
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(new FileOutputStream(dir.resolve("console.txt").toFile())));
+        CLI.session().printManager = new CLI.PrintManager();
+        for (int round = 0; round < 3; round++) {
+            Batch batch = new Batch(true, console);
+            long start = System.nanoTime();
+            batch.run(new BufferedReader(new StringReader(script.toString())));
+            long nanos = System.nanoTime() - start;
+            console.printf("%,d lines, %,d commands, %d failures in %d ms: %,.0f commands/s%n",
+                    lines, batch.commands(), batch.failures(), nanos / 1_000_000, batch.commands() / (nanos / 1e9));
+        }
+        System.setOut(console);
+        CLI.session().printManager = new CLI.PrintManager();
+        TreeDeleter.delete(dir);
+    }
+}
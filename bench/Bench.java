@@ -0,0 +1,107 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+// A small benchmark harness in the spirit of JMH, without dependencies: warms a
+// task up, times each measured call, and reports throughput, latency percentiles,
+// bytes allocated per call and GC activity. What a call returns is consumed like
+// JMH's Blackhole does, so the JIT cannot drop the work that produced it.
+public class Bench {
+
+    interface Task {
+        void run() throws Exception;
+    }
+
+    // A task whose result is consumed
+    interface Call {
+        Object call() throws Exception;
+    }
+
+    // Every result is stored here; the store is volatile, so the JIT must keep it
+    // and with it the computation of the result
+    private static volatile Object blackhole;
+
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    static int warmup = Integer.getInteger("bench.warmup", 3);
+    static int iterations = Integer.getInteger("bench.iterations", 10);
+
+    static void header() {
+        System.out.printf("%-28s %10s %10s %10s %10s %10s %14s %6s %8s%n",
+                "benchmark", "ops/s", "p50 ms", "p90 ms", "p99 ms", "max ms", "alloc B/op", "gcs", "gc ms");
+    }
+
+    static void run(String name, Task task) throws Exception {
+        run(name, () -> { }, task);
+    }
+
+    static void run(String name, Call task) throws Exception {
+        run(name, () -> { }, task);
+    }
+
+    static void run(String name, Task setup, Task task) throws Exception {
+        run(name, setup, () -> {
+            task.run();
+            return null;
+        });
+    }
+
+    // setup runs before every call and is not measured
+    static void run(String name, Task setup, Call task) throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            setup.run();
+            consume(task.call());
+        }
+        long[] nanos = new long[iterations];
+        long allocated = 0;
+        long gcCount = gcCount();
+        long gcTime = gcTime();
+        for (int i = 0; i < iterations; i++) {
+            setup.run();
+            long allocBefore = allocatedBytes();
+            long start = System.nanoTime();
+            Object result = task.call();
+            nanos[i] = System.nanoTime() - start;
+            consume(result);
+            allocated += allocatedBytes() - allocBefore;
+        }
+        long total = Arrays.stream(nanos).sum();
+        Arrays.sort(nanos);
+        System.out.printf("%-28s %10.1f %10.2f %10.2f %10.2f %10.2f %14d %6d %8d%n",
+                name, iterations / (total / 1e9),
+                percentile(nanos, 50), percentile(nanos, 90), percentile(nanos, 99), nanos[nanos.length - 1] / 1e6,
+                allocated / iterations, gcCount() - gcCount, gcTime() - gcTime);
+    }
+
+    static void consume(Object result) {
+        blackhole = result;
+    }
+
+    static double percentile(long[] sorted, int p) {
+        int index = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    // Bytes allocated so far by all live threads, which includes pipeline stage threads
+    static long allocatedBytes() {
+        long[] ids = threads.getAllThreadIds();
+        long sum = 0;
+        for (long bytes : threads.getThreadAllocatedBytes(ids)) {
+            if (bytes > 0) sum += bytes;
+        }
+        return sum;
+    }
+
+    static long gcCount() {
+        long sum = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) sum += Math.max(0, gc.getCollectionCount());
+        return sum;
+    }
+
+    static long gcTime() {
+        long sum = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) sum += Math.max(0, gc.getCollectionTime());
+        return sum;
+    }
+}
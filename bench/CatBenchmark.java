@@ -0,0 +1,60 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// Compares the throughput of the line-by-line cat that the CLI used to have
+// with the transferTo based CLI.cat(src, dest).
+// Usage: java CatBenchmark [sizeInMB]
+public class CatBenchmark {
+
+    // The previous implementation: BufferedReader, StringBuilder, trim, then write
+    static void lineByLineCat(File src, File dest) throws IOException {
+        StringBuilder content = new StringBuilder();
+        try (BufferedReader in = new BufferedReader(new FileReader(src))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                content.append(line).append(System.lineSeparator());
+            }
+        }
+        try (PrintStream out = new PrintStream(new FileOutputStream(dest, true))) {
+            out.print(content.toString().trim());
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int sizeMB = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        Path dir = Files.createTempDirectory("catbench");
+        Path src = dir.resolve("big.log");
+        Path dest = dir.resolve("out.log");
+
+        try (BufferedWriter w = Files.newBufferedWriter(src)) {
+            String line = "2024-11-05 12:00:00 INFO request handled in 12ms by worker-07\n";
+            long target = (long) sizeMB * 1024 * 1024;
+            for (long written = 0; written < target; written += line.length()) {
+                w.write(line);
+            }
+        }
+        long bytes = Files.size(src);
+
+        for (int round = 0; round < 3; round++) {
+            Files.write(dest, new byte[0]);
+            long start = System.nanoTime();
+            lineByLineCat(src.toFile(), dest.toFile());
+            report("line-by-line", bytes, System.nanoTime() - start);
+
+            Files.write(dest, new byte[0]);
+            start = System.nanoTime();
+            CLI.cat(src.toString(), dest.toString());
+            report("transferTo  ", bytes, System.nanoTime() - start);
+        }
+
+        Files.delete(src);
+        Files.delete(dest);
+        Files.delete(dir);
+    }
+
+    static void report(String name, long bytes, long nanos) {
+        double seconds = nanos / 1e9;
+        System.out.printf("%s %8.1f MB/s (%d ms)%n", name, bytes / 1048576.0 / seconds, nanos / 1_000_000);
+    }
+}
@@ -0,0 +1,59 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// Benchmarks every CLI command and a few representative pipelines on generated
+// fixtures. Sizes and iteration counts come from system properties:
+//   java -Dbench.size=64 -Dbench.files=20000 -Dbench.iterations=10 CommandBenchmarks
+public class CommandBenchmarks {
+
+    public static void main(String[] args) throws Exception {
+        long size = Long.getLong("bench.size", 64) * 1024 * 1024;
+        int files = Integer.getInteger("bench.files", 20_000);
+
+        Path dir = Files.createTempDirectory("clibench");
+        CLI.session().workingDirectory = dir.toFile();
+        Path big = Fixtures.textFile(dir, "big.txt", size);
+        Path small = Fixtures.textFile(dir, "small.txt", size / 16);
+        Fixtures.wideDirectory(dir, "wide", files);
+        Path sink = dir.resolve("sink.txt");
+
+        // Command output goes to a file so the console pager does not hold it
+        CLI.session().printManager.setPrintStream(new FileOutputStream(sink.toFile()));
+
+        Bench.header();
+        Bench.run("cat", () -> CLI.cat("big.txt"));
+        Bench.run("sort small.txt", () -> CLI.piping("sort small.txt"));
+        Bench.run("cat small.txt | sort", () -> CLI.piping("cat small.txt | sort"));
+        Bench.run("cat small.txt | sort -n -r", () -> CLI.piping("cat small.txt | sort -n -r"));
+        Bench.run("ls wide (cold)", DirectoryCache::clear, () -> CLI.ls("wide"));
+        Bench.run("ls wide (cached)", () -> CLI.ls("wide"));
+        Bench.run("ls wide -U | sort", () -> CLI.piping("ls wide -U | sort"));
+        Bench.run("ls wide -l", () -> CLI.piping("ls wide -l"));
+        Bench.run("PrintManager 1M lines", () -> Files.write(sink, new byte[0]), () -> {
+            for (int i = 0; i < 1_000_000; i++) {
+                CLI.session().printManager.println("output line " + i);
+            }
+            CLI.session().printManager.flush();
+        });
+        Bench.run("mkdir + touch + rm", () -> {
+            CLI.mkdir("scratch");
+            for (int i = 0; i < 100; i++) {
+                CLI.touch("scratch" + File.separator + "f" + i);
+                CLI.rm("scratch" + File.separator + "f" + i);
+            }
+        });
+        Fixtures.deepTree(dir, "walk", 5, 6, 4);
+        Bench.run("du -s walk", () -> CLI.piping("du -s walk"));
+        Bench.run("find walk -name f1 | wc -l", () -> CLI.piping("find walk -name f1 | wc -l"));
+        Bench.run("find walk -size +0 -type f | head", () -> CLI.piping("find walk -size +0 -type f | head -n 10"));
+        Bench.run("rmdir tree", () -> Fixtures.deepTree(dir, "tree", 4, 5, 4), () -> CLI.rmdir("tree"));
+        // Last, as a command with a redirect leaves output on the console when it ends
+        Plan catToFile = CLI.compile("cat big.txt > cat.txt").plans.get(0);
+        Bench.run("cat big.txt > file", () -> CLI.execute(catToFile));
+
+        CLI.session().printManager.setPrintStream(System.out);
+        TreeDeleter.delete(dir);
+    }
+}
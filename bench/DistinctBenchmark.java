@@ -0,0 +1,52 @@
+import java.lang.ref.Reference;
+import java.util.HashSet;
+import java.util.Set;
+
+// Adds growing numbers of distinct lines to a HashSet<String> and to a LineSet
+// and prints the time and the heap each holds on to. The LineSet should keep
+// its heap near 8 to 16 bytes a line, with the text outside the heap.
+// Usage: java DistinctBenchmark [largestMillionLines]
+public class DistinctBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int largest = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        for (int millions = 1; millions <= largest; millions *= 2) {
+            int lines = millions * 1_000_000;
+
+            System.gc();
+            long heapBefore = usedHeap();
+            long start = System.nanoTime();
+            Set<String> strings = new HashSet<>();
+            for (int i = 0; i < lines; i++) strings.add(line(i));
+            long hashSetTime = System.nanoTime() - start;
+            System.gc();
+            long hashSetHeap = usedHeap() - heapBefore;
+            Reference.reachabilityFence(strings);
+            strings = null;
+
+            System.gc();
+            heapBefore = usedHeap();
+            start = System.nanoTime();
+            LineSet set = new LineSet();
+            for (int i = 0; i < lines; i++) set.add(line(i));
+            long lineSetTime = System.nanoTime() - start;
+            System.gc();
+            long lineSetHeap = usedHeap() - heapBefore;
+            Reference.reachabilityFence(set);
+
+            System.out.printf("%d M lines: HashSet %d ms, %,d KB heap; LineSet %d ms, %,d KB heap + %,d KB off heap%n",
+                    millions, hashSetTime / 1_000_000, hashSetHeap / 1024,
+                    lineSetTime / 1_000_000, lineSetHeap / 1024, set.textBytes() / 1024);
+            set = null;
+        }
+    }
+
+    private static String line(int i) {
+        return "2024-01-01 host" + (i % 97) + " request " + i;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
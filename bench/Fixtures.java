@@ -0,0 +1,58 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+// Synthetic inputs for the benchmarks: large text files and wide or deep directory trees
+public class Fixtures {
+    private static final String[] WORDS = {"alpha", "Bravo", "charlie", "Delta", "echo", "Foxtrot", "golf", "Hotel",
+            "india", "Juliet", "kilo", "Lima", "mike", "November", "oscar", "Papa", "ERROR", "WARN", "INFO"};
+
+    // A log-like file of random words, about the given size
+    static Path textFile(Path dir, String name, long bytes) throws IOException {
+        Path file = dir.resolve(name);
+        Random random = new Random(name.hashCode());
+        try (BufferedWriter w = Files.newBufferedWriter(file)) {
+            long written = 0;
+            StringBuilder line = new StringBuilder();
+            while (written < bytes) {
+                line.setLength(0);
+                line.append(random.nextInt(1_000_000));
+                for (int i = 2 + random.nextInt(8); i > 0; i--) {
+                    line.append(' ').append(WORDS[random.nextInt(WORDS.length)]);
+                }
+                line.append('\n');
+                w.append(line);
+                written += line.length();
+            }
+        }
+        return file;
+    }
+
+    // One directory holding many small files, some of them hidden
+    static Path wideDirectory(Path dir, String name, int files) throws IOException {
+        Path wide = Files.createDirectories(dir.resolve(name));
+        for (int i = 0; i < files; i++) {
+            Files.writeString(wide.resolve((i % 10 == 0 ? "." : "") + "file" + i + ".txt"), "x");
+        }
+        return wide;
+    }
+
+    // A tree with fanout subdirectories per level and a few files in every directory
+    static Path deepTree(Path dir, String name, int depth, int fanout, int filesPerDirectory) throws IOException {
+        Path root = Files.createDirectories(dir.resolve(name));
+        fill(root, depth, fanout, filesPerDirectory);
+        return root;
+    }
+
+    private static void fill(Path dir, int depth, int fanout, int files) throws IOException {
+        for (int i = 0; i < files; i++) {
+            Files.writeString(dir.resolve("f" + i), "data" + i);
+        }
+        if (depth == 0) return;
+        for (int i = 0; i < fanout; i++) {
+            fill(Files.createDirectory(dir.resolve("d" + i)), depth - 1, fanout, files);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// Opens files of growing size in the pager and times the first screen, the last
+// screen, a jump to the middle and the complete line index, next to the heap the
+// pager holds on to. The first and last screens should take the same time on
+// every size; only the index grows, at 8 bytes per line.
+// Usage: java PagerBenchmark [largestSizeInMB]
+public class PagerBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int largestMB = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+        Path dir = Files.createTempDirectory("pagerbench");
+        Pipeline.LineSink discard = line -> { };
+        try {
+            for (int sizeMB = 16; sizeMB <= largestMB; sizeMB *= 4) {
+                Path file = Fixtures.textFile(dir, "text" + sizeMB + ".log", (long) sizeMB * 1024 * 1024);
+                System.gc();
+                long heapBefore = usedHeap();
+
+                long start = System.nanoTime();
+                Pager pager = new Pager(file);
+                pager.render(discard);
+                long first = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                pager.command("G", discard);
+                long last = System.nanoTime() - start;
+
+                while (pager.lineCount() < 0) Thread.sleep(1);
+                long indexed = System.nanoTime() - start;
+                long lines = pager.lineCount();
+
+                start = System.nanoTime();
+                pager.command(Long.toString(lines / 2), discard);
+                long middle = System.nanoTime() - start;
+
+                System.gc();
+                long heap = usedHeap() - heapBefore;
+                System.out.printf("%5d MB, %,11d lines: first screen %.2f ms, end %.2f ms, middle %.2f ms, index %d ms, heap %,d KB%n",
+                        sizeMB, lines, first / 1e6, last / 1e6, middle / 1e6, indexed / 1_000_000, heap / 1024);
+                pager.close();
+                Files.delete(file);
+            }
+        } finally {
+            TreeDeleter.delete(dir);
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
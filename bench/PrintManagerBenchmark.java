@@ -0,0 +1,54 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// Prints many lines through CLI.PrintManager, once to the console pager and once
+// to a redirect file, and compares the file case with the unbuffered PrintStream
+// the redirects used before.
+// Usage: java PrintManagerBenchmark [lines]
+public class PrintManagerBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int lines = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        Path file = Files.createTempFile("printbench", ".txt");
+
+        // Console: output goes to a discarding stdout, paging through it with more
+        PrintStream realOut = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        long start = System.nanoTime();
+        CLI.PrintManager console = new CLI.PrintManager();
+        for (int i = 0; i < lines; i++) {
+            console.println("output line " + i);
+            if (i % 8 == 7) console.more();
+        }
+        long consoleNanos = System.nanoTime() - start;
+        System.setOut(realOut);
+        report("console pager   ", lines, consoleNanos);
+
+        // Redirect: buffered file sink, flushed once at the end of the command
+        start = System.nanoTime();
+        CLI.PrintManager redirect = new CLI.PrintManager();
+        redirect.setPrintStream(new FileOutputStream(file.toFile(), false));
+        for (int i = 0; i < lines; i++) {
+            redirect.println("output line " + i);
+        }
+        redirect.flush();
+        redirect.setPrintStream(System.out);
+        report("redirect (new)  ", lines, System.nanoTime() - start);
+
+        // The old redirect sink: a PrintStream straight over the FileOutputStream
+        start = System.nanoTime();
+        try (PrintStream old = new PrintStream(new FileOutputStream(file.toFile(), false))) {
+            for (int i = 0; i < lines; i++) {
+                old.print("output line " + i + System.getProperty("line.separator"));
+            }
+        }
+        report("redirect (old)  ", lines, System.nanoTime() - start);
+
+        Files.delete(file);
+    }
+
+    static void report(String name, int lines, long nanos) {
+        System.out.printf("%s %,12.0f lines/s (%d ms)%n", name, lines / (nanos / 1e9), nanos / 1_000_000);
+    }
+}
@@ -0,0 +1,77 @@
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Load test of the server mode: hundreds of clients connect at once, each runs a
+// script in its own session and checks that it only saw its own directory.
+// Reports session latency percentiles and commands per second.
+// Usage: java SessionLoadBenchmark [sessions] [rounds]
+public class SessionLoadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        Path dir = Files.createTempDirectory("sessionbench");
+        Fixtures.textFile(dir, "small.txt", 2048);
+        Path socket = dir.resolve("cli.sock");
+
+        String template = "mkdir s%d\ncd s%d\ntouch a.txt\ntouch b.txt\nls | sort -r\n"
+                + "cat ../small.txt | sort > sorted.txt\ncat sorted.txt | sort -r | sort\npwd\n";
+        int commandsPerSession = 8;
+
+        ExecutorService clients = Executors.newFixedThreadPool(sessions);
+        Server server = new Server(socket, dir.toFile()).start();
+        try {
+            for (int round = 0; round < rounds; round++) {
+                List<Future<Long>> results = new ArrayList<>();
+                long start = System.nanoTime();
+                for (int i = 0; i < sessions; i++) {
+                    int id = round * sessions + i;
+                    String script = template.replace("%d", Integer.toString(id));
+                    results.add(clients.submit(() -> session(socket, script, dir.resolve("s" + id))));
+                }
+                long[] nanos = new long[sessions];
+                for (int i = 0; i < sessions; i++) {
+                    nanos[i] = results.get(i).get();
+                }
+                long elapsed = System.nanoTime() - start;
+                Arrays.sort(nanos);
+                System.out.printf("%d sessions in %d ms: %,.0f sessions/s, %,.0f commands/s, session p50 %.1f ms, p99 %.1f ms, max %.1f ms%n",
+                        sessions, elapsed / 1_000_000, sessions / (elapsed / 1e9),
+                        sessions * commandsPerSession / (elapsed / 1e9),
+                        nanos[sessions / 2] / 1e6, nanos[(int) (sessions * 0.99)] / 1e6, nanos[sessions - 1] / 1e6);
+            }
+        } finally {
+            server.close();
+            clients.shutdown();
+            TreeDeleter.delete(dir);
+        }
+    }
+
+    // Runs one session and returns how long it took
+    private static long session(Path socket, String script, Path expectedDirectory) throws Exception {
+        long start = System.nanoTime();
+        String output;
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+            channel.write(ByteBuffer.wrap(script.getBytes(StandardCharsets.UTF_8)));
+            channel.shutdownOutput();
+            output = new String(Channels.newInputStream(channel).readAllBytes(), StandardCharsets.UTF_8);
+        }
+        long nanos = System.nanoTime() - start;
+        if (!output.startsWith("b.txt" + System.lineSeparator() + "a.txt")
+                || !output.trim().endsWith(expectedDirectory.toString())) {
+            throw new IllegalStateException("Session saw the wrong state: " + output);
+        }
+        return nanos;
+    }
+}
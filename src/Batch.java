@@ -0,0 +1,93 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+
+// Runs a script non-interactively: one command line per input line, blank lines
+// and lines starting with # are skipped. Output is not paged and goes through
+// the PrintManager's buffer, flushed after every command. Errors are reported on
+// stderr with their line number; the script stops at the first one unless
+// keepGoing is set. A failure on the left of && only skips the right side, and a
+// pipeline followed by & is started as a background job.
+public class Batch {
+    private final boolean keepGoing;
+    private final PrintStream errors;
+    private long commands = 0;
+    private long failures = 0;
+
+    public Batch(boolean keepGoing) {
+        this(keepGoing, System.err);
+    }
+
+    public Batch(boolean keepGoing, PrintStream errors) {
+        this.keepGoing = keepGoing;
+        this.errors = errors;
+    }
+
+    // Returns true when every command succeeded
+    public boolean run(BufferedReader script) throws IOException {
+        Session session = CLI.session();
+        session.printManager.setPaging(false);
+        try {
+            String line;
+            int number = 0;
+            while (!session.exited && (line = script.readLine()) != null) {
+                number++;
+                String trimmed = line.trim();
+                if (trimmed.isEmpty() || trimmed.startsWith("#")) continue;
+                if (!runLine(trimmed, number) && !keepGoing) {
+                    return false;
+                }
+            }
+            return failures == 0;
+        } finally {
+            session.printManager.flush();
+            session.printManager.setPaging(true);
+        }
+    }
+
+    private boolean runLine(String line, int number) {
+        Script script;
+        try {
+            script = CLI.compile(line);
+        } catch (RuntimeException e) {
+            failures++;
+            errors.println(number + ": " + message(e));
+            return false;
+        }
+        boolean succeeded = true;
+        for (int i = 0; i < script.plans.size(); i++) {
+            if (script.onlyIfSucceeded.get(i) && !succeeded) continue;
+            commands++;
+            if (script.background.get(i)) {
+                // Started jobs count as succeeded; their failures show in jobs and fg
+                Jobs.Job job = CLI.session().jobs.start(script.plans.get(i));
+                CLI.session().printManager.println("[" + job.id + "] " + job.plan);
+                succeeded = true;
+                continue;
+            }
+            try {
+                CLI.execute(script.plans.get(i));
+                succeeded = true;
+            } catch (Exception e) {
+                failures++;
+                succeeded = false;
+                errors.println(number + ": " + message(e));
+                boolean conditional = i + 1 < script.plans.size() && script.onlyIfSucceeded.get(i + 1);
+                if (!conditional && !keepGoing) return false;
+            }
+        }
+        return true;
+    }
+
+    static String message(Exception e) {
+        return e.getMessage() != null ? e.getMessage() : e.toString();
+    }
+
+    public long commands() {
+        return commands;
+    }
+
+    public long failures() {
+        return failures;
+    }
+}
@@ -1,50 +1,338 @@
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 public class CLI {
-    public static File workingDirectory = new File(System.getProperty("user.dir"));
 
     public CLI() {
     }
 
-    private static final Map<String, String> commands = new HashMap<String, String>() {{
-        put("pwd", "Print Working Directory - Displays the current directory path.");
-        put("cd", "Change Directory - Changes the current directory.");
-        put("ls", "List - Lists files and directories in the current directory.");
-        put("ls -a", "List All - Lists all files, including hidden files.");
-        put("ls -r", "List Reverse - Lists files in reverse order.");
-        put("mkdir", "Make Directory - Creates a new directory.");
-        put("rmdir", "Remove Directory - Deletes an empty directory.");
-        put("touch", "Touch - Creates an empty file or updates the timestamp of an existing file.");
-        put("mv", "Move - Moves or renames files and directories.");
-        put("rm", "Remove - Deletes files or directories.");
-        put("cat", "Concatenate - Displays the contents of a file.");
-        put(">", "Redirect Output - Redirects command output to a file, overwriting the file.");
-        put(">>", "Append Output - Redirects command output to a file, appending to the file.");
-        put("|", "Pipe - Passes the output of one command as input to another command.");
-    }};
+    // Every command the interpreter knows; also the source of the help text
+    static final CommandRegistry registry = new CommandRegistry()
+            .register("pwd", "Print Working Directory - Displays the current directory path.", (args, in, out) -> out.write(pwd()))
+            .register("cd", "Change Directory - Changes the current directory.", (args, in, out) -> {
+                // Without an argument cd consumes the previous output and passes it on unchanged
+                String param = args.length > 1 ? args[1] : in.readAll();
+                String result = cd(param);
+                if (!result.equals(pwd())) throw new IllegalArgumentException("cd: " + result);
+                if (args.length == 1) writeLines(param, out);
+            })
+            .register("ls", "List - Lists files and directories in the current directory.", (args, in, out) -> {
+                // List the files and directories given, else the directory the previous command output
+                ListOptions options = ListOptions.parse(args, 1);
+                if (!options.operands.isEmpty()) {
+                    list(options, out);
+                    return;
+                }
+                String param = in.readAll();
+                listDirectory(resolve(param == null ? "" : param), options, out);
+            })
+            .describe("ls -a", "List All - Lists all files, including hidden files.")
+            .describe("ls -r", "List Reverse - Lists files in reverse order.")
+            .describe("ls -U", "List Unsorted - Lists files in directory order without sorting.")
+            .describe("ls -l", "List Long - Lists files with permissions, size and modification time.")
+            .register("mkdir", "Make Directory - Creates a new directory.", (args, in, out) -> {
+                for (int i = 1; i < args.length; i++) {
+                    if (!mkdir(args[i])) out.write("mkdir: cannot create directory '" + args[i] + "'");
+                }
+            })
+            .register("rmdir", "Remove Directory - Deletes a directory and everything in it.", (args, in, out) -> {
+                for (int i = 1; i < args.length; i++) {
+                    TreeDeleter.Summary summary = removeDirectory(args[i]);
+                    for (String failure : summary.failures) {
+                        out.write("rmdir: " + failure);
+                    }
+                    out.write(summary.toString());
+                }
+            })
+            .register("touch", "Touch - Creates an empty file or updates the timestamp of an existing file.", (args, in, out) -> {
+                for (int i = 1; i < args.length; i++) {
+                    if (!touch(args[i])) out.write("touch: cannot touch '" + args[i] + "'");
+                }
+            })
+            .register("mv", "Move - Moves or renames files and directories, several at once into a directory, and reports the throughput.", (args, in, out) -> {
+                if (args.length < 3) throw new IllegalArgumentException("usage: mv <source>... <destination>");
+                TreeMover.Summary summary = mv(Arrays.asList(args).subList(1, args.length - 1), args[args.length - 1]);
+                for (String failure : summary.failures) {
+                    out.write("mv: " + failure);
+                }
+                out.write(summary.toString());
+                if (!summary.failures.isEmpty()) {
+                    throw new IOException("mv: " + summary.failures.size() + " entries could not be moved");
+                }
+            })
+            .register("cp", "Copy - Copies a file, or with -r a directory tree, and reports the throughput.", (args, in, out) -> {
+                boolean recursive = args.length > 1 && (args[1].equals("-r") || args[1].equals("-R"));
+                int first = recursive ? 2 : 1;
+                if (args.length - first != 2) throw new IllegalArgumentException("usage: cp [-r] <source> <destination>");
+                TreeCopier.Summary summary = cp(args[first], args[first + 1], recursive);
+                for (String failure : summary.failures) {
+                    out.write("cp: " + failure);
+                }
+                out.write(summary.toString());
+                if (!summary.failures.isEmpty()) {
+                    throw new IOException("cp: " + summary.failures.size() + " entries could not be copied");
+                }
+            })
+            .register("rm", "Remove - Deletes files or directories.", (args, in, out) -> {
+                for (int i = 1; i < args.length; i++) {
+                    rm(args[i]);
+                }
+            })
+            .register("cat", "Concatenate - Displays the contents of one or more files.", (args, in, out) -> {
+                // Use the filenames if specified, else the previous command's output
+                String[] params = (args.length > 1) ? Arrays.copyOfRange(args, 1, args.length) : new String[]{in.readAll()};
+                if (params[0] == null) {
+                    throw new IllegalArgumentException("Error: No file specified for cat command.");
+                }
+                for (String param : params) {
+                    Path file = resolve(param);
+                    if (!PathResolver.exists(file)) {
+                        throw new NoSuchFileException(file.toString(), null, "does not exist");
+                    }
+                    Metrics.touched(1);
+                    Metrics.read(file.toFile().length());
+                    // A redirect takes the file as it is, through transferTo; anything else reads its lines
+                    if (out.transfer(file.toFile()) >= 0) continue;
+                    try (BufferedReader reader = new BufferedReader(new FileReader(file.toFile()))) {
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            out.write(line);
+                        }
+                    }
+                }
+            })
+            .register("sort", "Sort - Sorts lines case-insensitively. Options: -r reverse, -n numeric, -u unique, -k field, -t separator.", (args, in, out) -> {
+                // Spills sorted runs to disk once the memory budget is used up
+                ExternalSort.Options options = ExternalSort.Options.parse(args, 1);
+                ExternalSort sorter = new ExternalSort(options);
+                String line;
+                if (options.file != null) {
+                    File file = resolve(options.file).toFile();
+                    Metrics.touched(1);
+                    Metrics.read(file.length());
+                    try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+                        while ((line = reader.readLine()) != null) {
+                            sorter.add(line);
+                        }
+                    }
+                } else {
+                    while ((line = in.read()) != null) {
+                        sorter.add(line);
+                    }
+                }
+                sorter.finish(out);
+            })
+            .register("grep", "Grep - Prints the lines that contain a pattern. Options: -i ignore case, -v invert, -c count, -n line numbers, -F fixed string.", (args, in, out) -> {
+                // Searches the file if one is given, else filters the previous command's output
+                Grep.Options options = Grep.Options.parse(args, 1);
+                Grep grep = new Grep(options);
+                if (options.file != null) {
+                    Path file = resolve(options.file);
+                    if (!PathResolver.exists(file)) {
+                        throw new NoSuchFileException(file.toString(), null, "does not exist");
+                    }
+                    grep.search(file, out);
+                } else {
+                    grep.filter(in, out);
+                }
+            })
+            .register("wc", "Word Count - Counts lines, words and bytes. Options: -l lines, -w words, -c bytes.", (args, in, out) -> {
+                // Counts each file given, else the previous command's output
+                WordCount.Options options = WordCount.Options.parse(args, 1);
+                if (options.files.isEmpty()) {
+                    out.write(WordCount.count(in).format(options, null));
+                    return;
+                }
+                WordCount.Counts total = new WordCount.Counts();
+                for (String name : options.files) {
+                    Path file = resolve(name);
+                    if (!PathResolver.exists(file)) {
+                        throw new NoSuchFileException(file.toString(), null, "does not exist");
+                    }
+                    WordCount.Counts counts = WordCount.count(file);
+                    out.write(counts.format(options, name));
+                    total.lines += counts.lines;
+                    total.words += counts.words;
+                    total.bytes += counts.bytes;
+                }
+                if (options.files.size() > 1) out.write(total.format(options, "total"));
+            })
+            .register("tee", "Tee - Copies the previous command's output to files and passes it on. Options: -a append.", (args, in, out) -> {
+                // Every line is encoded once and written to all files by their sinks' threads
+                boolean append = args.length > 1 && args[1].equals("-a");
+                int first = append ? 2 : 1;
+                FileSink[] sinks = new FileSink[args.length - first];
+                if (sinks.length == 0) {
+                    String line;
+                    while ((line = in.read()) != null) out.write(line);
+                    return;
+                }
+                try {
+                    for (int i = 0; i < sinks.length; i++) {
+                        Path file = resolve(args[first + i]);
+                        changed(file);
+                        sinks[i] = FileSink.open(file.toFile(), append);
+                    }
+                } catch (IOException e) {
+                    for (FileSink sink : sinks) {
+                        if (sink != null) sink.close();
+                    }
+                    throw e;
+                }
+                try (Writer writer = new FileSink.Output(sinks)) {
+                    String line;
+                    while ((line = in.read()) != null) {
+                        writer.write(line);
+                        writer.write(System.lineSeparator());
+                        out.write(line);
+                    }
+                }
+            })
+            .register("head", "Head - Prints the first lines of a file or of the previous command's output. Options: -n lines (default 10).", (args, in, out) -> {
+                HeadTail.Options options = HeadTail.Options.parse(args, 1, false);
+                if (options.file == null) {
+                    HeadTail.head(in, options.lines, out);
+                } else {
+                    HeadTail.head(existing(options.file), options.lines, out);
+                }
+            })
+            .register("tail", "Tail - Prints the last lines of a file or of the previous command's output. Options: -n lines (default 10), -f follow appended lines.", (args, in, out) -> {
+                HeadTail.Options options = HeadTail.Options.parse(args, 1, true);
+                if (options.file == null) {
+                    HeadTail.tail(in, options.lines, out);
+                } else if (options.follow) {
+                    HeadTail.follow(existing(options.file), options.lines, out);
+                } else {
+                    HeadTail.tail(existing(options.file), options.lines, out);
+                }
+            })
+            .register("less", "Less - Pages through a file: less <file> shows its first screen, then less shows the next one. Commands: +<line> go to line, +g start, +G end, +b back, +/<pattern> search, +n next match, +q close.", (args, in, out) -> {
+                // Commands start with '+', anything else is the file to open
+                Session session = session();
+                out.screen();
+                String command = "";
+                String name = null;
+                for (int i = 1; i < args.length; i++) {
+                    if (args[i].startsWith("+")) command = args[i].substring(1);
+                    else name = args[i];
+                }
+                if (name != null) {
+                    Pager pager = new Pager(existing(name));
+                    if (session.pager != null) session.pager.close();
+                    session.pager = pager;
+                    Metrics.touched(1);
+                    if (command.isEmpty()) {
+                        pager.render(out);
+                        return;
+                    }
+                }
+                if (session.pager == null) throw new IllegalStateException("less: no file is open");
+                if (command.equals("q")) {
+                    session.pager.close();
+                    session.pager = null;
+                    return;
+                }
+                session.pager.command(command, out);
+            })
+            .register("du", "Disk Usage - Prints the bytes under each directory, in kilobytes. Options: -s totals only, -h human-readable, -d depth.", (args, in, out) -> {
+                DiskUsage.du(DiskUsage.Options.parse(args, 1), out);
+            })
+            .register("find", "Find - Prints the entries under directories that pass tests: -name, -iname, -type f|d|l, -size [+-]n[ckMG], -mtime [+-]days, -mmin [+-]minutes, -maxdepth n.", (args, in, out) -> {
+                Find.find(Find.Options.parse(args, 1), out);
+            })
+            .register("uniq", "Uniq - Collapses runs of equal adjacent lines. Options: -c count, -d only repeated lines.", (args, in, out) -> {
+                Uniq.uniq(Uniq.Options.parse(args, 1, true), in, out);
+            })
+            .register("distinct", "Distinct - Prints every line once, in the order first seen, without sorting.", (args, in, out) -> {
+                Uniq.distinct(Uniq.Options.parse(args, 1, false), in, out);
+            })
+            .describe("&", "Background - Runs the command as a background job and goes on with the next one.")
+            .register("jobs", "Jobs - Lists the background jobs and their state.", (args, in, out) -> {
+                for (Jobs.Job job : session().jobs.list()) {
+                    out.write(job.status());
+                }
+            })
+            .register("wait", "Wait - Waits for a background job, or for all of them, to finish.", (args, in, out) -> {
+                List<Jobs.Job> jobs = args.length > 1 ? List.of(session().jobs.get(args[1])) : session().jobs.list();
+                for (Jobs.Job job : jobs) {
+                    job.await();
+                    out.write(job.status());
+                }
+            })
+            .register("fg", "Foreground - Waits for a background job and shows its output.", (args, in, out) -> {
+                // The most recent job unless one is named as %n or n
+                Jobs.Job job = session().jobs.get(args.length > 1 ? args[1] : null);
+                job.await();
+                session().jobs.remove(job);
+                if (job.dropped() > 0) out.write("fg: " + job.dropped() + " earlier lines were not kept");
+                for (String line : job.output()) {
+                    out.write(line);
+                }
+                if (job.state() == Jobs.State.FAILED) throw job.failure();
+            })
+            .register("kill", "Kill - Cancels a background job.", (args, in, out) -> {
+                if (args.length < 2) throw new IllegalArgumentException("usage: kill %<job>");
+                Jobs.Job job = session().jobs.get(args[1]);
+                job.cancel();
+                job.await();
+                out.write(job.status());
+            })
+            .describe(">", "Redirect Output - Redirects command output to a file, overwriting the file.")
+            .describe(">>", "Append Output - Redirects command output to a file, appending to the file.")
+            .register("more", "More - Shows the next page of output.", (args, in, out) -> more())
+            .describe("|", "Pipe - Passes the output of one command as input to another command.")
+            .register("help", "Help - Lists the available commands, or describes one.", (args, in, out) ->
+                    help(args.length > 1 ? String.join(" ", Arrays.copyOfRange(args, 1, args.length)) : "", out))
+            .describe(";", "Sequence - Runs the next command after this one.")
+            .describe("&&", "And - Runs the next command only if this one succeeded.")
+            .register("stats", "Stats - Shows per-command metrics. stats on|off|reset switches or clears them.", (args, in, out) -> {
+                String action = args.length > 1 ? args[1] : "";
+                if (action.equals("on")) Metrics.enabled = true;
+                else if (action.equals("off")) Metrics.enabled = false;
+                else if (action.equals("reset")) Metrics.reset();
+                else for (String line : Metrics.report()) out.write(line);
+            })
+            .register("exit", "Exit - Leaves the interpreter.", (args, in, out) -> exit());
+
+    // The session of the calling thread; its working directory, output and jobs
+    // are what the commands use
+    static Session session() {
+        return Session.current();
+    }
 
     // print working directory
     static String pwd() {
-        return workingDirectory.getAbsolutePath();
+        return session().workingDirectory.getAbsolutePath();
+    }
+
+    // Every path argument goes through the session's resolver: absolute arguments
+    // stay as they are, relative ones are taken from the working directory
+    static Path resolve(String path) {
+        return session().paths.resolve(path);
     }
 
     static File makeAbsolute(String srcPath) {
-        File file = new File(srcPath);
-        // Check if the path is already absolute
-        if (!file.isAbsolute()) {
-            // Convert to an absolute path using the current working directory
-            file = new File(workingDirectory, srcPath);
-        }
-        return file.getAbsoluteFile();
+        return resolve(srcPath).toFile();
     }
 
     // change directory
     static String cd(String directoryPath) {
+        File workingDirectory = session().workingDirectory;
 
         if (directoryPath == null || directoryPath.trim().isEmpty()) {
             directoryPath = workingDirectory.getParentFile().toString();
@@ -52,141 +340,410 @@ public class CLI {
             directoryPath = workingDirectory.getParentFile().toString();
         }
 
-        File newDirectory;
+        Path newDirectory;
 
         if (directoryPath.equals("..")) {
-            newDirectory = workingDirectory.getParentFile();
+            newDirectory = resolve("").getParent();
             if (newDirectory == null) {
                 return "Already at the root directory.";
             }
         } else {
-            newDirectory = makeAbsolute(directoryPath);
+            newDirectory = resolve(directoryPath);
         }
 
-        if (!newDirectory.exists() || !newDirectory.isDirectory()) {
+        if (!PathResolver.isDirectory(newDirectory)) {
             return "This directory doesn't exist. Please try again.";
         }
 
-        workingDirectory = newDirectory;
+        // A new working directory also drops the session's resolved paths
+        session().workingDirectory = newDirectory.toFile();
         return pwd(); // Return the new working directory path
     }
 
 
     // create directory
     static boolean mkdir(String d) {
-        File directory = new File(workingDirectory + File.separator + d);
-        return directory.exists() || directory.mkdirs();
+        Path directory = resolve(d);
+        if (PathResolver.exists(directory)) return true;
+        // mkdirs may create several levels, the listing of the topmost one's parent changes
+        Path topmost = directory;
+        while (topmost.getParent() != null && !PathResolver.exists(topmost.getParent())) {
+            topmost = topmost.getParent();
+        }
+        boolean created = directory.toFile().mkdirs();
+        Metrics.touched(1);
+        changed(topmost);
+        return created;
     }
 
-    // remove directory
+    // remove directory and everything in it, subtrees in parallel
     static boolean rmdir(String d) {
-        File directoryToBeDeleted = new File(workingDirectory + File.separator + d);
-        File[] allContents = directoryToBeDeleted.listFiles();
-        if (allContents != null) {
-            for (File file : allContents) {
-                rmdir(file.toString());
-            }
-        }
-        return directoryToBeDeleted.delete();
+        return removeDirectory(d).failures.isEmpty();
+    }
+
+    static TreeDeleter.Summary removeDirectory(String d) {
+        Path root = resolve(d);
+        TreeDeleter.Summary summary = TreeDeleter.delete(root);
+        changed(root);
+        Metrics.touched(summary.files + summary.directories);
+        return summary;
     }
 
     static String ls(String directoryPath) {
-        return listDirectory(new File(workingDirectory + File.separator + directoryPath), false, false);
+        return listDirectory(resolve(directoryPath), false, false);
     }
 
     static String lsAll(String directoryPath) {
-        return listDirectory(new File(workingDirectory + File.separator + directoryPath), true, false);
+        return listDirectory(resolve(directoryPath), true, false);
     }
 
     static String lsReverse(String directoryPath) {
-        return listDirectory(new File(workingDirectory + File.separator + directoryPath), false, true);
+        return listDirectory(resolve(directoryPath), false, true);
     }
 
-    private static String listDirectory(File directory, boolean showHidden, boolean reverse) {
-        if (!directory.exists() || !directory.isDirectory()) {
-            return "This directory doesn't exist. Please try again.";
+    private static String listDirectory(Path directory, boolean showHidden, boolean reverse) {
+        ListOptions options = new ListOptions();
+        options.all = showHidden;
+        options.reverse = reverse;
+        StringBuilder output = new StringBuilder();
+        try {
+            listDirectory(directory, options, line -> output.append(line).append("\n"));
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
         }
+        return output.toString().trim();
+    }
 
-        File[] files = directory.listFiles();
-        if (files == null) return "";
+    // Options of the ls command: -a all, -r reverse, -U unsorted, -l long format
+    static class ListOptions {
+        boolean all;
+        boolean reverse;
+        boolean unsorted;
+        boolean longFormat;
+        final List<String> operands = new ArrayList<>(); // files and directories to list
 
-        Arrays.sort(files, reverse ? Comparator.reverseOrder() : Comparator.naturalOrder());
+        static ListOptions parse(String[] args, int from) {
+            ListOptions o = new ListOptions();
+            for (int i = from; i < args.length; i++) {
+                String a = args[i];
+                if (a.startsWith("-") && a.length() > 1) {
+                    for (char c : a.substring(1).toCharArray()) {
+                        if (c == 'a') o.all = true;
+                        else if (c == 'r') o.reverse = true;
+                        else if (c == 'U') o.unsorted = true;
+                        else if (c == 'l') o.longFormat = true;
+                        else throw new IllegalArgumentException("ls: invalid option -- '" + c + "'");
+                    }
+                } else {
+                    o.operands.add(a);
+                }
+            }
+            return o;
+        }
+    }
 
-        StringBuilder output = new StringBuilder();
-        for (File file : files) {
-            if (showHidden || !file.isHidden()) {
-                output.append(file.getName()).append("\n");
+    // ls with operands, as ls *.log passes them: files are listed first, as they were
+    // named, then the contents of each directory, under its name when there are several
+    static void list(ListOptions options, Pipeline.LineSink out) throws Exception {
+        List<String> files = new ArrayList<>();
+        List<String> directories = new ArrayList<>();
+        for (String operand : options.operands) {
+            Path path = resolve(operand);
+            if (Files.isDirectory(path)) directories.add(operand);
+            else if (PathResolver.exists(path)) files.add(operand);
+            else if (options.operands.size() == 1) out.write("This directory doesn't exist. Please try again.");
+            else out.write("ls: cannot access '" + operand + "': No such file or directory");
+        }
+        if (!options.unsorted) {
+            Comparator<String> order = options.reverse ? Comparator.reverseOrder() : Comparator.naturalOrder();
+            files.sort(order);
+            directories.sort(order);
+        }
+        Metrics.touched(files.size());
+        for (String file : files) {
+            out.write(options.longFormat ? longFormat(resolve(file), file) : file);
+        }
+        boolean headers = options.operands.size() > 1;
+        for (int i = 0; i < directories.size(); i++) {
+            if (headers) {
+                if (i > 0 || !files.isEmpty()) out.write("");
+                out.write(directories.get(i) + ":");
             }
+            listDirectory(resolve(directories.get(i)), options, out);
         }
-        return output.toString().trim();
+    }
+
+    // Streams the names in a directory to out. Entries come from a DirectoryStream and
+    // hidden names are skipped by their leading dot, so nothing is stat'ed unless -l
+    // asks for attributes. Sorted listings are served from the DirectoryCache; those
+    // too big for it go through ExternalSort, which spills to disk if needed.
+    static void listDirectory(Path directory, ListOptions options, Pipeline.LineSink out) throws Exception {
+        if (!Files.isDirectory(directory)) {
+            out.write("This directory doesn't exist. Please try again.");
+            return;
+        }
+        Pipeline.LineSink entries = options.longFormat ? name -> out.write(longFormat(directory.resolve(name), name)) : out;
+        if (!options.unsorted) {
+            List<String> names = DirectoryCache.list(directory);
+            if (names != null) {
+                Metrics.touched(names.size());
+                for (int i = 0; i < names.size(); i++) {
+                    String name = names.get(options.reverse ? names.size() - 1 - i : i);
+                    if (options.all || !name.startsWith(".")) entries.write(name);
+                }
+                return;
+            }
+        }
+        long count = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            if (options.unsorted) {
+                for (Path entry : stream) {
+                    count++;
+                    String name = entry.getFileName().toString();
+                    if (options.all || !name.startsWith(".")) entries.write(name);
+                }
+                return;
+            }
+            ExternalSort.Options order = new ExternalSort.Options();
+            order.caseSensitive = true;
+            order.reverse = options.reverse;
+            ExternalSort sorter = new ExternalSort(order);
+            for (Path entry : stream) {
+                count++;
+                String name = entry.getFileName().toString();
+                if (options.all || !name.startsWith(".")) sorter.add(name);
+            }
+            sorter.finish(entries);
+        } finally {
+            Metrics.touched(count);
+        }
+    }
+
+    // One line of ls -l for entry, shown as name; all attributes come from a single readAttributes call
+    private static String longFormat(Path entry, String name) throws IOException {
+        String type;
+        String permissions;
+        long size;
+        FileTime modified;
+        try {
+            PosixFileAttributes attrs = Files.readAttributes(entry, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            permissions = PosixFilePermissions.toString(attrs.permissions());
+            type = attrs.isDirectory() ? "d" : attrs.isSymbolicLink() ? "l" : "-";
+            size = attrs.size();
+            modified = attrs.lastModifiedTime();
+        } catch (UnsupportedOperationException e) {
+            BasicFileAttributes attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            permissions = "---------";
+            type = attrs.isDirectory() ? "d" : attrs.isSymbolicLink() ? "l" : "-";
+            size = attrs.size();
+            modified = attrs.lastModifiedTime();
+        }
+        return String.format("%s%s %10d %s %s", type, permissions, size,
+                modified.toInstant().truncatedTo(ChronoUnit.SECONDS), name);
     }
 
     static boolean touch(String file) throws IOException {
         // Check if the parent directory exists and is a directory
-        File file2 = new File(workingDirectory + File.separator + file);
-        if (file2.getParentFile() != null && !file2.getParentFile().exists()) {
+        Path path = resolve(file);
+        if (path.getParent() != null && !PathResolver.exists(path.getParent())) {
             return false; // Parent directory does not exist
         }
-        if (!file2.exists()) {
-            return file2.createNewFile();
+        Metrics.touched(1);
+        if (!PathResolver.exists(path)) {
+            changed(path);
+            return path.toFile().createNewFile();
         } else {
-            return file2.setLastModified(System.currentTimeMillis());
+            return path.toFile().setLastModified(System.currentTimeMillis());
         }
     }
 
+    // Called by commands that create, delete or move path: cached listings and
+    // cached existence checks of it and everything below it are dropped
+    static void changed(Path path) {
+        DirectoryCache.invalidateTree(path);
+        PathResolver.invalidate(path);
+    }
+
+    // Buffers command output. Console output is paged NewLineLimit lines at a time
+    // (more shows the next page); redirected output goes to a FileSink, whose own
+    // thread writes it in bulk, and is flushed and closed when a command ends.
     static class PrintManager {
+        static final int BUFFER_SIZE = 64 * 1024;
         private final int NewLineLimit = 8;
-        private String buff = "";
+        private char[] buff = new char[BUFFER_SIZE];
+        private int start = 0; // pending console output is buff[start, end)
+        private int end = 0;
         private int newLineCount = 0;
-        private PrintStream outputStream = System.out;
+        private boolean moreShown = false;
+        private boolean paging = true; // off in batch mode
+        private boolean screen = false; // the running command prints a whole screen
+        private static final FileChannel stdout = new FileOutputStream(FileDescriptor.out).getChannel();
+        final PrintStream console;                     // where output goes unless redirected
+        private final WritableByteChannel consoleChannel; // the console's bytes, for whole files
+        private PrintStream outputStream;
+        private Writer writer;
+        private FileSink sink; // set while output is redirected to a file
+
+        public PrintManager() {
+            this(System.out, stdout);
+        }
+
+        // Output of a session whose console is not this process's stdout
+        public PrintManager(PrintStream console, WritableByteChannel consoleChannel) {
+            this.console = console;
+            this.consoleChannel = consoleChannel;
+            this.outputStream = console;
+            this.writer = new BufferedWriter(new OutputStreamWriter(console), BUFFER_SIZE);
+        }
 
         public void setPrintStream(PrintStream p) {
-            if (outputStream != System.out) {
-                outputStream.close();
-            }
+            closeSink();
             outputStream = p;
+            writer = new BufferedWriter(new OutputStreamWriter(p), BUFFER_SIZE);
+        }
+
+        public void setPrintStream(FileOutputStream f) {
+            redirect(new FileSink(f.getChannel(), FileSink.fsync));
+        }
+
+        // Sends output to file until the next setPrintStream, which closes it
+        public void redirect(File file, boolean append) throws IOException {
+            redirect(FileSink.open(file, append));
         }
 
+        private void redirect(FileSink fileSink) {
+            closeSink();
+            outputStream = null;
+            writer = new FileSink.Output(fileSink);
+            sink = fileSink;
+        }
+
+        private void closeSink() {
+            if (outputStream != console) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    if (outputStream != null) outputStream.close();
+                    if (sink != null) throw new UncheckedIOException(e);
+                }
+            }
+            sink = null;
+        }
+
+        // Pushes everything written so far to the sink; called at the end of a command
+        public void flush() {
+            screen = false;
+            try {
+                writer.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        // Sends a whole file to the output without copying it through the heap
+        public long write(File file) throws IOException {
+            flush();
+            if (sink != null) {
+                return transfer(file, sink.channel());
+            }
+            outputStream.flush();
+            if (outputStream != console) {
+                return Files.copy(file.toPath(), outputStream);
+            }
+            return transfer(file, consoleChannel);
+        }
+
+        // Writes pending console output up to the page limit in one bulk write
         public void print() {
-            int i;
-            for (i = 0; i < buff.length() && newLineCount < NewLineLimit; i++) {
-                if (buff.charAt(i) == '\n')
+            int i = start;
+            while (i < end && newLineCount < NewLineLimit) {
+                if (buff[i++] == '\n')
                     newLineCount++;
-                outputStream.print(buff.charAt(i));
             }
-            buff = buff.substring(i);
-            if (newLineCount == NewLineLimit)
-                outputStream.print("...");
+            try {
+                writer.write(buff, start, i - start);
+                start = i;
+                if (start == end) {
+                    start = end = 0;
+                }
+                if (newLineCount == NewLineLimit && !moreShown) {
+                    writer.write("...");
+                    moreShown = true;
+                }
+                writer.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        // Shows the next page of console output
+        public void more() {
+            newLineCount = 0;
+            moreShown = false;
+            print();
+        }
+
+        // Number of console characters waiting for more
+        public int pending() {
+            return end - start;
+        }
+
+        // The running command's console output is shown whole rather than a page at a
+        // time, because it is a screen already (less). Output still waiting for more
+        // is dropped, as the new screen replaces it.
+        public void screen() {
+            start = end = 0;
+            newLineCount = 0;
+            moreShown = false;
+            screen = true;
+        }
+
+        // Batch mode turns paging off: console output is buffered like a file sink
+        public void setPaging(boolean paging) {
+            this.paging = paging;
         }
 
         public void print(String s) {
-            if (outputStream == System.out) {
-                buff += s;
+            if (outputStream == console && paging && !screen) {
+                append(s);
                 if (newLineCount < NewLineLimit)
                     print();
             } else {
-                outputStream.print(s);
+                try {
+                    writer.write(s);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
             }
         }
 
-        public void println(String s) {
-            print(s + System.getProperty("line.separator"));
+        // Copies s into the reusable buffer, compacting or growing it when full
+        private void append(String s) {
+            int length = s.length();
+            if (end + length > buff.length) {
+                int used = end - start;
+                if (used + length <= buff.length / 2) {
+                    System.arraycopy(buff, start, buff, 0, used);
+                } else {
+                    char[] bigger = new char[Math.max(buff.length * 2, used + length)];
+                    System.arraycopy(buff, start, bigger, 0, used);
+                    buff = bigger;
+                }
+                start = 0;
+                end = used;
+            }
+            s.getChars(0, length, buff, end);
+            end += length;
         }
-//         //clears all previous commands in console
-//         public void clear(){
-//             for(int i = 0;i < 100;i++){
-//                 outputStream.println();
-//             }
-//         }
-//         public void printMore(){
-//             newLineCount = 0;
-//             print();
-//         }
-
 
+        public void println(String s) {
+            print(s);
+            print(System.lineSeparator());
+        }
     }
 
-    static PrintManager printManager = new PrintManager();
 
 
     static void redirectAppendToFile(String command) throws IOException {
@@ -194,7 +751,7 @@ public class CLI {
         String filePath = commands;
         //command = command.substring(0, command.indexOf(">>")).trim();
         File file = makeAbsolute(filePath);
-        printManager.setPrintStream(new PrintStream(new FileOutputStream(file, true)));
+        session().printManager.redirect(file, true);
     }
 
     // >
@@ -202,176 +759,263 @@ public class CLI {
         String filePath = command.substring(command.indexOf(">") + 1).trim();
         command = command.substring(0, command.indexOf(">")).trim();
         File file = makeAbsolute(filePath);
-        printManager.setPrintStream(new PrintStream(new FileOutputStream(file, false)));
+        PrintManager printManager = session().printManager;
+        printManager.redirect(file, false);
         printManager.print(command); // Print the command to the file
+        printManager.flush();
+    }
+
+    // Shows the next page of output held back by the PrintManager
+    static void more() {
+        session().printManager.more();
     }
 
     // Moves or renames a file or directory
     static boolean mv(String srcPath, String destPath) throws IOException {
-        File src = makeAbsolute(srcPath);
-        File dst = makeAbsolute(destPath);
-        if (!src.exists()) {
-            throw new NoSuchFileException(src.getAbsolutePath(), null, "does not exist.");
+        TreeMover.Summary summary = mv(List.of(srcPath), destPath);
+        if (!summary.failures.isEmpty()) {
+            throw new IOException("mv: " + summary.failures.get(0));
         }
-        if (dst.isFile()) {
-            //throw new IOException("Can't move into file.");
-            Files.move(src.toPath(), dst.toPath().resolveSibling(dst.getName()));
+        return true;
+    }
+
+    // Moves the sources to destPath, or into it if it is a directory. Several sources
+    // need a directory and are moved concurrently.
+    static TreeMover.Summary mv(List<String> srcPaths, String destPath) throws IOException {
+        Path dst = resolve(destPath);
+        boolean into = PathResolver.isDirectory(dst);
+        if (srcPaths.size() > 1 && !into) {
+            throw new NotDirectoryException(dst.toString());
         }
-        if (!dst.exists()) { // Renaming
-            Files.move(src.toPath(), src.toPath().resolveSibling(dst.getName()));
-        } else {
-            Files.move(src.toPath(), dst.toPath().resolve(src.toPath().getFileName()), StandardCopyOption.REPLACE_EXISTING);
+        Map<Path, Path> moves = new LinkedHashMap<>();
+        Map<Path, String> sources = new HashMap<>(); // by target, for sources that share one
+        for (String srcPath : srcPaths) {
+            Path src = resolve(srcPath);
+            if (!PathResolver.exists(src)) {
+                throw new NoSuchFileException(src.toString(), null, "does not exist.");
+            }
+            Path target = into ? dst.resolve(src.getFileName()) : dst;
+            if (target.startsWith(src)) {
+                throw new IOException("mv: cannot move '" + srcPath + "' into itself");
+            }
+            // Moves run concurrently, so a second source for a target would silently replace the first
+            String other = sources.putIfAbsent(target, srcPath);
+            if (other != null && !resolve(other).equals(src)) {
+                throw new IOException("mv: will not move '" + other + "' and '" + srcPath + "' both to '" + target + "'");
+            }
+            moves.put(src, target);
         }
-        return true;
+        TreeMover.Summary summary = TreeMover.move(moves);
+        for (Map.Entry<Path, Path> move : moves.entrySet()) {
+            changed(move.getKey());
+            changed(move.getValue());
+        }
+        Metrics.touched(summary.renamed + summary.files + summary.directories);
+        Metrics.read(summary.bytes);
+        Metrics.wrote(summary.bytes);
+        return summary;
+    }
+
+    // Copies a file, or with recursive a directory tree, into destPath or into the
+    // directory destPath names
+    static TreeCopier.Summary cp(String srcPath, String destPath, boolean recursive) throws IOException {
+        Path src = resolve(srcPath);
+        Path dst = resolve(destPath);
+        if (!PathResolver.exists(src)) {
+            throw new NoSuchFileException(src.toString(), null, "does not exist.");
+        }
+        Path target = PathResolver.isDirectory(dst) ? dst.resolve(src.getFileName()) : dst;
+        // Opening the target truncates it, so copying a file onto itself would empty it
+        if (Files.exists(target, LinkOption.NOFOLLOW_LINKS) && Files.isSameFile(src, target)) {
+            throw new IOException("cp: '" + srcPath + "' and '" + (target == dst ? destPath : target) + "' are the same file");
+        }
+        if (PathResolver.isDirectory(src)) {
+            if (!recursive) throw new IOException("cp: -r not specified; omitting directory '" + srcPath + "'");
+            if (target.startsWith(src)) {
+                throw new IOException("cp: cannot copy a directory into itself");
+            }
+            if (PathResolver.exists(target)) throw new FileAlreadyExistsException(target.toString());
+        }
+        TreeCopier.Summary summary = TreeCopier.copy(src, target);
+        changed(target);
+        Metrics.touched(summary.files + summary.directories);
+        Metrics.read(summary.bytes);
+        Metrics.wrote(summary.bytes);
+        return summary;
     }
 
     // Deletes a file given a specific path
     static boolean rm(String srcPath) throws IOException {
-        File f = makeAbsolute(srcPath);
-        if (!f.exists()) throw new NoSuchFileException(srcPath, null, "does not exist.");
-        else if (f.isDirectory()) throw new IOException("Cannot delete directory.");
-        else if (!f.delete()) throw new IOException("Cannot delete file.");
+        Path f = resolve(srcPath);
+        if (!PathResolver.exists(f)) throw new NoSuchFileException(srcPath, null, "does not exist.");
+        else if (PathResolver.isDirectory(f)) throw new IOException("Cannot delete directory.");
+        changed(f);
+        Metrics.touched(1);
+        if (!f.toFile().delete()) throw new IOException("Cannot delete file.");
         return true;
     }
 
+    // The resolved path of a file argument that must exist
+    static Path existing(String argument) throws NoSuchFileException {
+        Path file = resolve(argument);
+        if (!PathResolver.exists(file)) {
+            throw new NoSuchFileException(file.toString(), null, "does not exist");
+        }
+        return file;
+    }
+
     // Concatenates a file and returns its content as a String
     static String cat(String f1) throws IOException {
-        File file = makeAbsolute(f1);
-        if (file.exists()) {
-            StringBuilder content = new StringBuilder();
-            try (BufferedReader in = new BufferedReader(new FileReader(file))) {
-                String line;
-                while ((line = in.readLine()) != null) {
-                    content.append(line).append(System.lineSeparator());
-                }
-            }
-            return content.toString().trim();
+        Path file = resolve(f1);
+        if (PathResolver.exists(file)) {
+            // One read of the raw bytes, no per-line copying or line-ending rewriting
+            return new String(Files.readAllBytes(file), Charset.defaultCharset()).trim();
         } else {
-            throw new NoSuchFileException(file.getAbsolutePath(), null, "does not exist");
+            throw new NoSuchFileException(file.toString(), null, "does not exist");
         }
     }
 
-    // Concatenates the contents of one file to another file
-    static String[] cat(String src, String dest) throws IOException {
-        File file = makeAbsolute(src);
-        File file1 = makeAbsolute(dest);
-        StringBuilder content = new StringBuilder();
-        StringBuilder content1 = new StringBuilder();
-
+    // Appends the contents of src to the end of dest, returns the number of bytes appended
+    static long cat(String src, String dest) throws IOException {
+        Path file = resolve(src);
+        Path file1 = resolve(dest);
+        if (!PathResolver.exists(file)) {
+            throw new NoSuchFileException(file.toString(), null, "does not exist");
+        }
+        if (!PathResolver.exists(file1)) {
+            throw new NoSuchFileException(file1.toString(), null, "does not exist");
+        }
+        try (FileChannel out = FileChannel.open(file1, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            long bytes = transfer(file.toFile(), out);
+            Metrics.touched(2);
+            Metrics.read(bytes);
+            Metrics.wrote(bytes);
+            return bytes;
+        }
+    }
 
-        if (file.exists()) {
-            try (BufferedReader in = new BufferedReader(new FileReader(file))) {
-                String line;
-                while ((line = in.readLine()) != null) {
-                    content.append(line).append(System.lineSeparator());
-                }
+    // transferTo may move fewer bytes than asked, so loop until the whole file is sent
+    static long transfer(File file, WritableByteChannel out) throws IOException {
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
             }
-
-        } else {
-            throw new NoSuchFileException(file.getAbsolutePath(), null, "does not exist");
+            return position;
         }
-        if (file1.exists()) {
-            try (BufferedReader in = new BufferedReader(new FileReader(file1))) {
-                String line;
-                while ((line = in.readLine()) != null) {
-                    content1.append(line).append(System.lineSeparator());
-                }
-            }
-        } else {
-            throw new NoSuchFileException(file1.getAbsolutePath(), null, "does not exist");
-        }
-        return new String[]{content.toString().trim(), content1.toString().trim()};
     }
 
     // sort (to test |)
     static String[] sort(String lines) {
         String[] arrayOfStrings = lines.split("\n");
-        Arrays.sort(arrayOfStrings, String.CASE_INSENSITIVE_ORDER);
+        ExternalSort.sort(arrayOfStrings, new ExternalSort.Options());
         return arrayOfStrings;
     }
 
     // |
+    // The command line is compiled into a Plan (cached by its text) whose steps
+    // become the stages of a Pipeline, so stages run concurrently and hand lines
+    // to each other instead of whole Strings.
     static Object piping(String command) throws IOException {
-        // Split commands by | character
-        String[] commands = command.split("\\|");
-        String output = null; // To hold the output of each command
+        Plan plan = Plan.compile(command, registry, CLI::unknown);
+        if (plan.redirect != null) {
+            try {
+                execute(plan);
+            } catch (IOException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+            return null;
+        }
+        String[] output = new String[1];
+        try {
+            Metrics.pipeline(plan, () -> {
+                Pipeline pipeline = plan.pipeline();
+                Pipeline.Pipe result = pipeline.start();
+                output[0] = result.readAll();
+                pipeline.await();
+            });
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+        return output[0];
+    }
 
-        for (int i = 0; i < commands.length; i++) {
-            String cmd = commands[i].trim(); // Trim whitespace
-            String[] arrayOfStrings = cmd.split("\\s+"); // Split by whitespace
+    // Stage for a name that is not in the registry
+    private static void unknown(String[] args, Pipeline.Pipe in, Pipeline.Pipe out) {
+        throw new IllegalArgumentException("Unknown command: " + args[0]);
+    }
 
-            if (arrayOfStrings.length == 0) {
-                continue; // Skip empty commands
-            }
+    // Compiles a script line: pipelines joined by ; and &&
+    static Script compile(String line) {
+        return Script.compile(line, registry, CLI::unknown);
+    }
 
-            // Process each command
-            if (arrayOfStrings[0].equals("pwd")) {
-                output = pwd(); // Get output from pwd
-                System.out.println(output); // Print output
-            } else if (arrayOfStrings[0].equals("ls")) {
-                // Determine the filename or use output from the previous command
-                String param = (arrayOfStrings.length > 1) ? arrayOfStrings[1] : output; // Get the first parameter if specified
-
-                if (arrayOfStrings.length > 2 && arrayOfStrings[2].equals("-r")) {
-                    output = lsReverse(param); // Use param directly or previous output
-                } else if (arrayOfStrings.length > 2 && arrayOfStrings[2].equals("-a")) {
-                    output = lsAll(param); // Use param directly or previous output
-                } else {
-                    output = ls(param); // Pass the filename or null
+    // Runs a compiled pipeline, streaming its output to the PrintManager (or to the
+    // plan's redirect file) and flushing it when the command is done
+    static void execute(Plan plan) throws Exception {
+        PrintManager printManager = session().printManager;
+        if (plan.redirect != null) {
+            printManager.redirect(makeAbsolute(plan.redirect), plan.append);
+        }
+        try {
+            Metrics.pipeline(plan, () -> plan.pipeline().run(new Pipeline.LineSink() {
+                @Override
+                public void write(String line) {
+                    printManager.println(line);
                 }
-            } else if (arrayOfStrings[0].equals("cat")) {
-                String param; // To hold the filename or previous output
 
-                // Use the first parameter directly from the command if specified
-                if (arrayOfStrings.length > 1) {
-                    param = arrayOfStrings[1]; // Get filename if specified
-                } else {
-                    param = output; // Use the previous command's output if filename not specified
+                @Override
+                public void screen() {
+                    printManager.screen();
                 }
 
-                if (param != null) {
-                    output = cat(param); // Pass the filename or output as a parameter
-                } else {
-                    System.out.println("Error: No file specified for cat command.");
+                // Only into a redirect: the console shows its output a page at a time
+                @Override
+                public long transfer(File file) throws IOException {
+                    return plan.redirect != null ? printManager.write(file) : -1;
                 }
-            } else if (arrayOfStrings[0].equals("sort")) {
-                String param = output; // Use previous output as input for sort
-                if (param != null) {
-                    String[] sortedArray = sort(param); // Call the sort function
-                    output = String.join("\n", sortedArray); // Join the sorted array into a single string with line breaks
-                } else {
-                    output = "Error: No input provided for sort command.";
-                }
-            } else if (arrayOfStrings[0].equals("cd")) {
-                cd(output);
-            } else {
-                System.out.println("Unknown command: " + arrayOfStrings[0]);
+            }));
+        } finally {
+            printManager.flush();
+            if (plan.redirect != null) {
+                printManager.setPrintStream(printManager.console);
             }
-
         }
-        return output;
     }
 
-    public static void exit() {
-        System.exit(0);
+    // Writes a String result to the next stage one line at a time
+    private static void writeLines(String s, Pipeline.Pipe out) throws Exception {
+        if (s == null) return;
+        for (String line : s.split("\n")) {
+            out.write(line);
+        }
     }
 
-    static void help() {
-        help("");
+    // Ends the session; the console session ends the process
+    public static void exit() {
+        if (session() == Session.console) {
+            System.exit(0);
+        }
+        session().exited = true;
     }
 
-    static void help(String c) {
+    static void help(String c, Pipeline.LineSink out) throws Exception {
         if (c.isEmpty()) {
-            System.out.println("Available commands:");
-            for (Map.Entry<String, String> entry : commands.entrySet()) {
-                System.out.println(entry.getKey() + ": " + entry.getValue());
+            out.write("Available commands:");
+            for (Map.Entry<String, String> entry : registry.descriptions().entrySet()) {
+                out.write(entry.getKey() + ": " + entry.getValue());
             }
         } else {
-            String description = commands.get(c);
+            String description = registry.description(c);
             if (description != null) {
-                System.out.println(c + ": " + description);
+                out.write(c + ": " + description);
             } else {
-                System.out.println("Command not found: " + c);
+                out.write("Command not found: " + c);
             }
         }
     }
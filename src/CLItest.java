@@ -1,5 +1,5 @@
+import org.junit.Before;
 import org.junit.Test;
-import org.junit.jupiter.api.BeforeEach;
 
 import java.io.BufferedReader;
 import java.io.File;
@@ -15,7 +15,7 @@ import java.util.List;
 import static org.junit.Assert.*;
 
 public class CLItest {
-    private static final Path WORKING_DIRECTORY = CLI.workingDirectory.toPath();
+    private static final Path WORKING_DIRECTORY = CLI.session().workingDirectory.toPath();
     private static final Path TEMP_DIRECTORY = Paths.get("testFolder");
     private static final Path DIRECTORY_NAME = Paths.get("newFolder");
     private static final Path VALID_FILE = TEMP_DIRECTORY.resolve("validFile.txt");
@@ -38,8 +38,12 @@ public class CLItest {
     private static final Path PIPE_FILE = TEMP_DIRECTORY.resolve("pipe.txt");
 
 
-    @BeforeEach
+    @Before
     public void setUp() throws IOException {
+        // Each test starts where the tests were started, writing to the console,
+        // whatever cd or redirect the test before it left behind
+        CLI.session().workingDirectory = WORKING_DIRECTORY.toFile();
+        CLI.session().printManager.setPrintStream(CLI.session().printManager.console);
         Files.walk(TEMP_DIRECTORY)
                 .filter(Files::isRegularFile)
                 .forEach(file -> {
@@ -272,7 +276,8 @@ public class CLItest {
         CLI.redirectAppendToFile(command);
 
         // Simulate print manager output
-        CLI.printManager.println("Appending content");
+        CLI.session().printManager.println("Appending content");
+        CLI.session().printManager.flush();
 
         // Verify that the content was appended
         String fileContent = Files.readString(APPENDING_FILE);
@@ -361,19 +366,36 @@ public class CLItest {
         // Create a target file where the content will be appended
         Files.writeString(TARGET_FILE, "Existing content\n");
 
-        // Use the `cat` function with two parameters to concatenate content from CAT2 to TARGET_FILE
-        String[] result = CLI.cat(TARGET_FILE.toFile().getPath(), CAT_FILE.toFile().getPath());
+        // Use the `cat` function with two parameters to append the content of CAT_FILE to TARGET_FILE
+        long appended = CLI.cat(CAT_FILE.toFile().getPath(), TARGET_FILE.toFile().getPath());
 
-        // Verify the operation was successful
-        assertEquals("Concatenation should succeed", 2, result.length);
+        assertEquals("All bytes of the source should be appended", Files.size(CAT_FILE), appended);
 
         // Read the content of the target file to verify concatenation
-//            String targetContent = Files.readString(TARGET_FILE);
-        String targetContent = result[0] + "\n" + result[1];
+        String targetContent = Files.readString(TARGET_FILE);
 
         assertEquals("Content should be appended to the target file", "Existing content\nSample content for testing", targetContent);
     }
 
+    @Test
+    public void catToRedirectFileTest() throws Exception {
+        // Into a redirect the files are copied as they are, line endings and all
+        Path crlf = TEMP_DIRECTORY.resolve("crlf.txt");
+        Files.writeString(crlf, "first\r\nsecond\r\n");
+        CLI.execute(CLI.compile("cat " + CAT_FILE + " " + crlf + " > " + REDIRECT_FILE).plans.get(0));
+        assertEquals("Files should be copied into the redirect target", "Sample content for testingfirst\r\nsecond\r\n",
+                Files.readString(REDIRECT_FILE));
+
+        Jobs.Job job = CLI.session().jobs.start(Plan.compile("cat " + crlf + " >> " + REDIRECT_FILE, CLI.registry, null));
+        job.await();
+        CLI.session().jobs.remove(job);
+        assertEquals("Sample content for testingfirst\r\nsecond\r\nfirst\r\nsecond\r\n", Files.readString(REDIRECT_FILE));
+
+        // Anywhere else cat passes on lines
+        assertEquals("first\nsecond", CLI.piping("cat " + crlf));
+        Files.delete(crlf);
+    }
+
     @Test
     public void pipingTest() throws IOException {
         List<String> lines = new ArrayList<>();
@@ -392,5 +414,949 @@ public class CLItest {
         assertEquals(check, CLI.piping("cat " + WORKING_DIRECTORY + "/testFolder/pipe.txt | sort"));
     }
 
-}
+    @Test
+    public void pipingLargeInputTest() throws IOException {
+        // More lines than the pipeline buffers, so stages must block and resume
+        Path bigFile = TEMP_DIRECTORY.resolve("bigPipe.txt");
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            lines.add("line" + (i * 7919 % 20000));
+        }
+        Files.write(bigFile, lines);
+
+        String[] expected = lines.toArray(new String[0]);
+        Arrays.sort(expected, String.CASE_INSENSITIVE_ORDER);
+        assertEquals(String.join("\n", expected), CLI.piping("cat " + bigFile.toAbsolutePath() + " | sort"));
+        Files.delete(bigFile);
+    }
+
+    @Test
+    public void sortSpillsToDiskTest() throws Exception {
+        // A tiny budget forces several sorted runs and a k-way merge
+        ExternalSort sorter = new ExternalSort(ExternalSort.Options.parse(new String[0], 0), 4096);
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            String line = (i % 2 == 0 ? "Item" : "item") + (i * 31 % 5000);
+            if (i % 100 == 0) line += "\rwith a carriage return"; // still one line after the merge
+            if (i % 700 == 0) line = "";
+            lines.add(line);
+            sorter.add(line);
+        }
+        List<String> sorted = new ArrayList<>();
+        sorter.finish(sorted::add);
+
+        assertTrue("Input should have been spilled to disk", sorter.spilledRuns() > 1);
+        lines.sort(String.CASE_INSENSITIVE_ORDER);
+        assertEquals(lines, sorted);
+    }
+
+    @Test
+    public void sortOptionsTest() throws IOException {
+        Path numbers = TEMP_DIRECTORY.resolve("numbers.txt");
+        Files.write(numbers, Arrays.asList("b 10", "a 9", "c 100", "a 9"));
+        String file = numbers.toAbsolutePath().toString();
+
+        assertEquals("c 100\nb 10\na 9", CLI.piping("cat " + file + " | sort -k 2 -n -r -u"));
+        assertEquals("a 9\na 9\nb 10\nc 100", CLI.piping("sort " + file));
+        Files.delete(numbers);
+    }
+
+    @Test
+    public void parallelSortMatchesCaseInsensitiveOrderTest() {
+        java.util.Random random = new java.util.Random(42);
+        String alphabet = "aAbBcCzZ_ 09\u00e9\u00c9\u0130\u0131";
+        String[] lines = new String[50000];
+        for (int i = 0; i < lines.length; i++) {
+            StringBuilder sb = new StringBuilder();
+            for (int j = random.nextInt(6); j >= 0; j--) {
+                sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            lines[i] = sb.toString();
+        }
+        String[] expected = lines.clone();
+        Arrays.sort(expected, String.CASE_INSENSITIVE_ORDER);
+
+        ExternalSort.sort(lines, new ExternalSort.Options());
+
+        assertArrayEquals(expected, lines);
+    }
+
+    @Test
+    public void printManagerPagesConsoleOutputTest() {
+        java.io.ByteArrayOutputStream console = new java.io.ByteArrayOutputStream();
+        java.io.PrintStream original = System.out;
+        System.setOut(new java.io.PrintStream(console, true));
+        try {
+            CLI.PrintManager manager = new CLI.PrintManager();
+            StringBuilder expected = new StringBuilder();
+            for (int i = 0; i < 20; i++) {
+                manager.print("line" + i + "\n");
+                if (i < 8) expected.append("line").append(i).append("\n");
+            }
+            assertEquals("Only the first page should be shown", expected + "...", console.toString());
+
+            console.reset();
+            manager.more();
+            assertTrue("more should show the next page", console.toString().startsWith("line8\nline9\n"));
+            assertEquals("The last page should still be pending", "line16\nline17\nline18\nline19\n".length(), manager.pending());
+        } finally {
+            System.setOut(original);
+        }
+    }
+
+    @Test
+    public void rmdirTreeTest() throws IOException {
+        Path tree = TEMP_DIRECTORY.resolve("tree");
+        Path outside = TEMP_DIRECTORY.resolve("outside.txt");
+        Files.writeString(outside, "keep me");
+        for (int i = 0; i < 5; i++) {
+            Path dir = Files.createDirectories(tree.resolve("a" + i).resolve("b" + i));
+            Files.writeString(dir.resolve("file.txt"), "12345");
+        }
+        Files.createSymbolicLink(tree.resolve("link"), outside.toAbsolutePath());
+
+        TreeDeleter.Summary summary = TreeDeleter.delete(tree);
+
+        assertTrue("Deletion should not fail", summary.failures.isEmpty());
+        assertEquals("Files and the link should be counted", 6, summary.files);
+        assertEquals("Directories should be counted", 11, summary.directories);
+        assertFalse("Tree should be gone", Files.exists(tree));
+        assertTrue("Link target must not be followed", Files.exists(outside));
+        Files.delete(outside);
+    }
+
+    @Test
+    public void lsStreamingOptionsTest() throws IOException {
+        Path dir = Files.createDirectories(TEMP_DIRECTORY.resolve("lsDir"));
+        Files.writeString(dir.resolve("b.txt"), "12345");
+        Files.createFile(dir.resolve("A.txt"));
+        Files.createFile(dir.resolve(".hidden"));
+        String path = dir.toString();
+
+        String unsorted = (String) CLI.piping("ls " + path + " -U");
+        List<String> names = new ArrayList<>(Arrays.asList(unsorted.split("\n")));
+        names.sort(null);
+        assertEquals(Arrays.asList("A.txt", "b.txt"), names);
+
+        assertEquals(".hidden\nA.txt\nb.txt", CLI.piping("ls " + path + " -a"));
+
+        String[] longFormat = ((String) CLI.piping("ls " + path + " -l -r")).split("\n");
+        assertTrue("Long format should show type and size", longFormat[0].matches("-\\S+ +5 .* b\\.txt"));
+        assertTrue("Long format should end with the name", longFormat[1].endsWith(" A.txt"));
 
+        CLI.rmdir(path);
+    }
+
+    @Test
+    public void lsCacheTest() throws Exception {
+        Path dir = Files.createDirectories(TEMP_DIRECTORY.resolve("cachedDir"));
+        Files.createFile(dir.resolve("one.txt"));
+        String path = dir.toString();
+
+        long misses = DirectoryCache.misses();
+        long hits = DirectoryCache.hits();
+        assertEquals("one.txt", CLI.ls(path));
+        assertEquals("one.txt", CLI.ls(path));
+        assertEquals("First listing should miss", misses + 1, DirectoryCache.misses());
+        assertEquals("Second listing should hit", hits + 1, DirectoryCache.hits());
+
+        // The CLI's own commands invalidate the snapshot, and drop its watch until
+        // the directory is listed again
+        assertTrue(DirectoryCache.watching(dir));
+        CLI.touch(path + File.separator + "two.txt");
+        assertFalse(DirectoryCache.watching(dir));
+        assertEquals("one.txt\ntwo.txt", CLI.ls(path));
+        assertTrue(DirectoryCache.watching(dir));
+        CLI.rm(dir.resolve("one.txt").toString());
+        assertEquals("two.txt", CLI.ls(path));
+
+        // So do redirects and tee when they create a file; appending to one does not
+        CLI.execute(CLI.compile("pwd > " + dir.resolve("three.txt")).plans.get(0));
+        assertFalse(DirectoryCache.watching(dir));
+        assertEquals("three.txt\ntwo.txt", CLI.ls(path));
+        CLI.execute(CLI.compile("pwd >> " + dir.resolve("three.txt")).plans.get(0));
+        assertTrue(DirectoryCache.watching(dir));
+        CLI.piping("pwd | tee " + dir.resolve("four.txt"));
+        assertEquals("four.txt\nthree.txt\ntwo.txt", CLI.ls(path));
+        // without waiting for the directory watch, which a listing right after can beat
+        for (int i = 0; i < 300; i++) {
+            CLI.execute(CLI.compile("pwd > " + dir.resolve("f" + i + ".txt")).plans.get(0));
+            assertTrue(Arrays.asList(CLI.ls(path).split("\n")).contains("f" + i + ".txt"));
+        }
+
+        // A directory that cannot be watched is listed afresh every time
+        int maxWatches = DirectoryCache.maxWatches;
+        DirectoryCache.maxWatches = 0;
+        try {
+            CLI.touch(path + File.separator + "five.txt");
+            misses = DirectoryCache.misses();
+            assertTrue(CLI.ls(path).contains("five.txt"));
+            Files.createFile(dir.resolve("six.txt"));
+            assertTrue("Another process's file is seen at once", CLI.ls(path).contains("six.txt"));
+            assertEquals(misses + 2, DirectoryCache.misses());
+            assertFalse(DirectoryCache.watching(dir));
+        } finally {
+            DirectoryCache.maxWatches = maxWatches;
+        }
+
+        CLI.rmdir(path);
+        assertEquals("This directory doesn't exist. Please try again.", CLI.ls(path));
+    }
+
+    @Test
+    public void planCacheAndTokenizerTest() throws IOException {
+        assertEquals(Arrays.asList(Arrays.asList("cat", "my file.txt"), Arrays.asList("sort", "-t", "|")),
+                Plan.tokenize("cat 'my file.txt' | sort -t \"|\""));
+
+        String line = "cat " + CAT_FILE.toAbsolutePath() + " | sort";
+        Plan plan = Plan.compile(line, CLI.registry, null);
+        assertTrue("A repeated line should reuse its plan", plan == Plan.compile(line, CLI.registry, null));
+        assertTrue("Steps should be bound to registered commands", plan.steps.get(1).command == CLI.registry.lookup("sort"));
+        assertEquals("Sample content for testing", CLI.piping(line));
+    }
+
+    @Test
+    public void batchModeTest() throws IOException {
+        Path out = TEMP_DIRECTORY.resolve("batchOut.txt");
+        String script = "# comment\n"
+                + "touch " + TEMP_DIRECTORY.resolve("batch.txt") + " ; unknownCommand && rm nothing\n"
+                + "ls " + TEMP_DIRECTORY + " | sort -r > " + out + "\n"
+                + "cat " + CAT_FILE + " >> " + out + "\n";
+        java.io.ByteArrayOutputStream errors = new java.io.ByteArrayOutputStream();
+        Batch batch = new Batch(true, new java.io.PrintStream(errors, true));
+
+        boolean succeeded = batch.run(new BufferedReader(new java.io.StringReader(script)));
+
+        assertFalse("The unknown command should fail the script", succeeded);
+        assertEquals("rm after the failed && should be skipped", 4, batch.commands());
+        assertEquals(1, batch.failures());
+        assertTrue(errors.toString().startsWith("2: Unknown command: unknownCommand"));
+        List<String> lines = Files.readAllLines(out);
+        assertTrue("Redirected ls output should be there", lines.contains("batch.txt"));
+        assertEquals("Appended cat output should come last", "Sample content for testing", lines.get(lines.size() - 1));
+        Files.delete(out);
+    }
+
+    @Test
+    public void metricsTest() throws IOException {
+        Metrics.enabled = true;
+        Metrics.reset();
+        try {
+            String file = CAT_FILE.toAbsolutePath().toString();
+            CLI.piping("cat " + file + " | sort");
+            CLI.piping("cat " + file + " | sort");
+
+            Metrics.CommandStats cat = Metrics.get("cat");
+            assertEquals(2, cat.count.sum());
+            assertEquals("cat should count the file it read", 2, cat.filesTouched.sum());
+            assertEquals(2 * Files.size(CAT_FILE), cat.bytesRead.sum());
+            assertEquals("One line plus newline per run", 2 * ("Sample content for testing".length() + 1), cat.bytesWritten.sum());
+            assertEquals(2, Metrics.get("piping").count.sum());
+
+            String report = (String) CLI.piping("stats");
+            assertTrue("stats should list sort", report.contains("\nsort "));
+        } finally {
+            Metrics.enabled = false;
+            Metrics.reset();
+        }
+    }
+
+    @Test
+    public void cpTest() throws IOException {
+        Path source = TEMP_DIRECTORY.resolve("cpSource");
+        Path target = TEMP_DIRECTORY.resolve("cpTarget");
+        for (int i = 0; i < 3; i++) {
+            Path dir = Files.createDirectories(source.resolve("d" + i).resolve("e" + i));
+            Files.writeString(dir.resolve("f.txt"), "content" + i);
+        }
+        Files.createSymbolicLink(source.resolve("link"), Paths.get("d0"));
+
+        TreeCopier.Summary summary = CLI.cp(source.toString(), target.toString(), true);
+
+        assertTrue(summary.failures.isEmpty());
+        assertEquals("Three files and the link", 4, summary.files);
+        assertEquals(7, summary.directories);
+        assertEquals("content2", Files.readString(target.resolve("d2/e2/f.txt")));
+        assertTrue("Links should be copied as links", Files.isSymbolicLink(target.resolve("link")));
+
+        // A single file copied into an existing directory keeps its name
+        CLI.cp(CAT_FILE.toString(), target.toString(), false);
+        assertEquals("Sample content for testing", Files.readString(target.resolve(CAT_FILE.getFileName())));
+
+        // Copying a file onto itself must not empty it
+        Path copied = target.resolve(CAT_FILE.getFileName());
+        try {
+            CLI.cp(copied.toString(), copied.toString(), false);
+            fail("Copying a file onto itself should fail");
+        } catch (IOException e) {
+            assertEquals("cp: '" + copied + "' and '" + copied + "' are the same file", e.getMessage());
+        }
+        try {
+            CLI.cp(copied.toString(), target.toString(), false);
+            fail("Copying a file into its own directory should fail");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().endsWith("are the same file"));
+        }
+        assertEquals("Sample content for testing", Files.readString(copied));
+
+        CLI.rmdir(source.toString());
+        CLI.rmdir(target.toString());
+    }
+
+    @Test
+    public void grepTest() throws Exception {
+        Path file = TEMP_DIRECTORY.resolve("grepFile.txt");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 50000; i++) {
+            sb.append(i % 7 == 0 ? "ERROR in request " : "ok request ").append(i).append(i % 2 == 0 ? "\n" : "\r\n");
+        }
+        Files.writeString(file, sb.toString());
+        String[][] cases = {{"ERROR"}, {"-n", "ERROR"}, {"-v", "ERROR"}, {"-c", "ERROR"}, {"-in", "error"},
+                {"-n", "'request [0-9]*99$'"}, {"-cv", "ok"}};
+        long threshold = Grep.parallelThreshold;
+        int parallelism = Grep.parallelism;
+        try {
+            for (String[] options : cases) {
+                String command = "grep " + String.join(" ", options);
+                String args = command + " " + file;
+                Grep.parallelThreshold = 0;
+                String streamed = (String) CLI.piping(args);
+                Grep.parallelThreshold = 1;
+                String mapped = (String) CLI.piping(args);
+                assertEquals(command, streamed, mapped);
+                // Eight chunks on two threads, so chunks wait for the ones before them
+                Grep.parallelism = 2;
+                assertEquals(command, streamed, CLI.piping(args));
+                Grep.parallelism = parallelism;
+                assertEquals(command, streamed, CLI.piping("cat " + file + " | " + command));
+            }
+        } finally {
+            Grep.parallelThreshold = threshold;
+            Grep.parallelism = parallelism;
+        }
+        assertEquals("7143", CLI.piping("grep -c ERROR " + file));
+        assertEquals("8:ERROR in request 7", CLI.piping("cat " + file + " | grep -n ERROR | grep 't 7$'"));
+        Files.delete(file);
+    }
+
+    @Test
+    public void wcTest() throws Exception {
+        Path file = TEMP_DIRECTORY.resolve("wcFile.txt");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 40000; i++) {
+            sb.append("word").append(i).append(i % 3 == 0 ? "  \t" : " ").append("x".repeat(i % 11)).append('\n');
+        }
+        sb.append("last line without newline");
+        Files.writeString(file, sb.toString());
+        long words = sb.toString().trim().split("\\s+").length;
+        String expected = "40000 " + words + " " + Files.size(file) + " " + file;
+        long threshold = WordCount.parallelThreshold;
+        int parallelism = WordCount.parallelism;
+        try {
+            WordCount.parallelThreshold = 0;
+            assertEquals(expected, CLI.piping("wc " + file));
+            // Small regions split lines and words everywhere
+            WordCount.parallelThreshold = 1;
+            WordCount.parallelism = 7;
+            assertEquals(expected, CLI.piping("wc " + file));
+        } finally {
+            WordCount.parallelThreshold = threshold;
+            WordCount.parallelism = parallelism;
+        }
+        assertEquals("40001", CLI.piping("cat " + file + " | wc -l"));
+        assertEquals(words + " " + (Files.size(file) + 1), CLI.piping("cat " + file + " | wc -wc"));
+
+        // Without the parallel path a file is still mapped a region at a time, as
+        // no mapping can be larger than 2 GB
+        int maxRegion = WordCount.maxRegion;
+        threshold = WordCount.parallelThreshold;
+        WordCount.parallelThreshold = 0;
+        WordCount.maxRegion = 1000;
+        try {
+            assertEquals(expected, CLI.piping("wc " + file));
+        } finally {
+            WordCount.parallelThreshold = threshold;
+            WordCount.maxRegion = maxRegion;
+        }
+        Files.delete(file);
+    }
+
+    @Test
+    public void backgroundJobsTest() throws Exception {
+        Path out = TEMP_DIRECTORY.resolve("jobsOut.txt");
+        Path sorted = TEMP_DIRECTORY.resolve("jobsSorted.txt");
+        String script = "cat " + CAT_FILE + " & sort " + CAT_FILE + " > " + sorted + " &\n"
+                + "cat missingFile &\n"
+                + "wait\n"
+                + "jobs > " + out + "\n"
+                + "fg %1 >> " + out + "\n"
+                + "fg 3\n";
+        java.io.ByteArrayOutputStream errors = new java.io.ByteArrayOutputStream();
+        Batch batch = new Batch(true, new java.io.PrintStream(errors, true));
+
+        batch.run(new BufferedReader(new java.io.StringReader(script)));
+
+        assertEquals("Only fg of the failed job should fail", 1, batch.failures());
+        List<String> lines = Files.readAllLines(out);
+        assertTrue(lines.get(0).startsWith("[1] Done  cat "));
+        assertTrue(lines.get(2).startsWith("[3] Failed: "));
+        assertEquals("fg shows the captured output", "Sample content for testing", lines.get(3));
+        assertEquals("Sample content for testing", Files.readString(sorted).trim());
+        assertEquals("fg removes the jobs it shows", 1, CLI.session().jobs.list().size());
+        CLI.session().jobs.remove(CLI.session().jobs.get("2"));
+
+        // Only the last lines of a job's output are kept
+        Path many = TEMP_DIRECTORY.resolve("jobsMany.txt");
+        List<String> numbers = new ArrayList<>();
+        for (int i = 1; i <= 20; i++) numbers.add("line " + i);
+        Files.write(many, numbers);
+        int outputLines = Jobs.outputLines;
+        Jobs.outputLines = 5;
+        try {
+            Jobs.Job cat = CLI.session().jobs.start(Plan.compile("cat " + many, CLI.registry, null));
+            cat.await();
+            assertEquals(numbers.subList(15, 20), cat.output());
+            assertEquals(15, cat.dropped());
+            assertEquals("fg: 15 earlier lines were not kept\nline 16\nline 17\nline 18\nline 19\nline 20",
+                    CLI.piping("fg " + cat.id));
+        } finally {
+            Jobs.outputLines = outputLines;
+        }
+        Files.delete(many);
+
+        // A job blocked in a command is interrupted by kill
+        CommandRegistry registry = new CommandRegistry().register("block", "", (args, in, o) -> Thread.sleep(60_000));
+        Jobs.Job job = CLI.session().jobs.start(Plan.build(Plan.lex("block"), registry, null));
+        assertEquals(Jobs.State.RUNNING, job.state());
+        job.cancel();
+        job.await();
+        assertEquals(Jobs.State.CANCELLED, job.state());
+        CLI.session().jobs.remove(job);
+
+        // Commands that report on their own write to the job, not to the console
+        Path tree = Files.createDirectories(TEMP_DIRECTORY.resolve("jobsTree/sub"));
+        Files.writeString(tree.resolve("f.txt"), "x");
+        Jobs.Job rmdir = CLI.session().jobs.start(Plan.compile("rmdir " + tree.getParent(), CLI.registry, null));
+        Jobs.Job help = CLI.session().jobs.start(Plan.compile("help pwd", CLI.registry, null));
+        rmdir.await();
+        help.await();
+        assertEquals(1, rmdir.output().size());
+        assertTrue(rmdir.output().get(0).startsWith("Deleted 1 files and 2 directories"));
+        assertEquals(List.of("pwd: " + CLI.registry.description("pwd")), help.output());
+        CLI.session().jobs.remove(rmdir);
+        CLI.session().jobs.remove(help);
+        Files.delete(out);
+        Files.delete(sorted);
+    }
+
+    @Test
+    public void serverSessionsTest() throws Exception {
+        Path socket = Files.createTempDirectory("cli").resolve("cli.sock");
+        Path home = TEMP_DIRECTORY.toAbsolutePath();
+        int sessions = 200;
+        try (Server server = new Server(socket, home.toFile()).start()) {
+            java.util.concurrent.ExecutorService clients = java.util.concurrent.Executors.newFixedThreadPool(sessions);
+            List<java.util.concurrent.Future<String>> outputs = new ArrayList<>();
+            for (int i = 0; i < sessions; i++) {
+                String script = "mkdir s" + i + "\ncd s" + i + "\ntouch f" + i + ".txt\nls\npwd\nexit\npwd\n";
+                outputs.add(clients.submit(() -> {
+                    try (java.nio.channels.SocketChannel channel = java.nio.channels.SocketChannel.open(
+                            java.net.UnixDomainSocketAddress.of(socket))) {
+                        channel.write(java.nio.ByteBuffer.wrap(script.getBytes()));
+                        channel.shutdownOutput();
+                        return new String(java.nio.channels.Channels.newInputStream(channel).readAllBytes());
+                    }
+                }));
+            }
+            for (int i = 0; i < sessions; i++) {
+                String expected = "f" + i + ".txt" + System.lineSeparator() + home.resolve("s" + i) + System.lineSeparator();
+                assertEquals("Each session has its own directory and output", expected, outputs.get(i).get());
+            }
+            clients.shutdown();
+            assertEquals(sessions, server.accepted());
+            try {
+                new Server(socket, home.toFile());
+                fail("A socket a server listens on should not be taken over");
+            } catch (IOException e) {
+                assertTrue(e.getMessage().endsWith("another server is listening on it"));
+            }
+        }
+
+        // A socket left by a server that died is replaced; a file given by mistake is kept
+        try (java.nio.channels.ServerSocketChannel dead = java.nio.channels.ServerSocketChannel.open(java.net.StandardProtocolFamily.UNIX)) {
+            dead.bind(java.net.UnixDomainSocketAddress.of(socket));
+        }
+        assertTrue(Files.exists(socket));
+        new Server(socket, home.toFile()).close();
+        Files.writeString(socket, "notes");
+        try {
+            new Server(socket, home.toFile());
+            fail("A regular file should not be deleted");
+        } catch (java.nio.file.FileAlreadyExistsException e) {
+            assertEquals("notes", Files.readString(socket));
+        }
+        Files.delete(socket);
+        assertEquals("The console session keeps its directory", WORKING_DIRECTORY.toFile(), CLI.session().workingDirectory);
+        for (int i = 0; i < sessions; i++) {
+            TreeDeleter.delete(home.resolve("s" + i));
+        }
+        Files.delete(socket.getParent());
+    }
+
+    @Test
+    public void pathResolverTest() throws Exception {
+        Path absolute = TEMP_DIRECTORY.resolve("resolved").toAbsolutePath();
+        // Absolute arguments used to be appended to the working directory
+        assertTrue(CLI.mkdir(absolute.toString()));
+        assertTrue(CLI.touch(absolute.resolve("a.txt").toString()));
+        assertEquals("a.txt", CLI.ls(absolute.toString()).trim());
+        assertEquals(absolute, CLI.resolve(TEMP_DIRECTORY + "/./resolved/sub/.."));
+
+        Path file = CLI.resolve(TEMP_DIRECTORY + "/resolved/a.txt");
+        PathResolver.command(() -> {
+            PathResolver.clear();
+            assertTrue(PathResolver.exists(file));
+            assertTrue(PathResolver.isFile(file));
+            assertFalse(PathResolver.isDirectory(file));
+            assertEquals("The second and third checks come from the cache", 2, PathResolver.hits());
+
+            CLI.rm(file.toString());
+            assertFalse("rm forgets what it deleted", PathResolver.exists(file));
+            Files.createFile(file);
+            assertTrue("Missing paths are checked on disk again", PathResolver.exists(file));
+        });
+
+        // Answers do not outlive a command, so files deleted by others are seen
+        assertNull(CLI.piping("cat " + file));
+        Files.delete(file);
+        CLI.piping("touch " + file);
+        assertTrue("touch creates a file deleted outside the interpreter", Files.exists(file));
+
+        // Relative paths follow cd
+        String home = CLI.pwd();
+        assertEquals(absolute.toString(), CLI.cd(absolute.toString()));
+        assertEquals(absolute.resolve("a.txt"), CLI.resolve("a.txt"));
+        assertEquals("Sample content for testing", CLI.cat("../catFile.txt"));
+        CLI.cd(home);
+        assertEquals(WORKING_DIRECTORY.resolve("a.txt"), CLI.resolve("a.txt"));
+        TreeDeleter.delete(absolute);
+    }
+
+    @Test
+    public void mvBulkTest() throws Exception {
+        Path dest = Files.createDirectories(TEMP_DIRECTORY.resolve("mvDest").toAbsolutePath());
+        Path tree = TEMP_DIRECTORY.resolve("mvTree").toAbsolutePath();
+        Files.createDirectories(tree.resolve("a/b"));
+        Files.writeString(tree.resolve("a/b/data.txt"), "tree data");
+        Path one = Files.writeString(TEMP_DIRECTORY.resolve("mvOne.txt").toAbsolutePath(), "one");
+        Path two = Files.writeString(TEMP_DIRECTORY.resolve("mvTwo.txt").toAbsolutePath(), "two");
+
+        TreeMover.Summary summary = CLI.mv(List.of(tree.toString(), one.toString(), two.toString()), dest.toString());
+        assertTrue(summary.failures.isEmpty());
+        assertEquals("Same filesystem moves are renames", 3, summary.renamed);
+        assertEquals("tree data", Files.readString(dest.resolve("mvTree/a/b/data.txt")));
+        assertFalse(Files.exists(tree));
+
+        // Across filesystems the entries are copied, keeping their permissions and
+        // times, and the sources deleted
+        java.nio.file.attribute.FileTime past = java.nio.file.attribute.FileTime.fromMillis(1_000_000_000_000L);
+        Files.setPosixFilePermissions(dest.resolve("mvTree/a/b/data.txt"), java.nio.file.attribute.PosixFilePermissions.fromString("rwxr-x---"));
+        Files.setLastModifiedTime(dest.resolve("mvTree/a/b/data.txt"), past);
+        Files.setPosixFilePermissions(dest.resolve("mvTree/a"), java.nio.file.attribute.PosixFilePermissions.fromString("rwx------"));
+        Files.setLastModifiedTime(dest.resolve("mvTree/a"), past);
+        TreeMover.atomic = false;
+        try {
+            summary = CLI.mv(List.of(dest.resolve("mvTree").toString(), dest.resolve("mvOne.txt").toString()), TEMP_DIRECTORY.toString());
+        } finally {
+            TreeMover.atomic = true;
+        }
+        assertTrue(summary.failures.isEmpty());
+        assertEquals(2, summary.copied);
+        assertEquals(2, summary.files);
+        assertEquals(3, summary.directories);
+        assertEquals("tree data".length() + "one".length(), summary.bytes);
+        assertEquals("tree data", Files.readString(tree.resolve("a/b/data.txt")));
+        assertEquals("rwxr-x---", java.nio.file.attribute.PosixFilePermissions.toString(Files.getPosixFilePermissions(tree.resolve("a/b/data.txt"))));
+        assertEquals(past, Files.getLastModifiedTime(tree.resolve("a/b/data.txt")));
+        assertEquals("rwx------", java.nio.file.attribute.PosixFilePermissions.toString(Files.getPosixFilePermissions(tree.resolve("a"))));
+        assertEquals("A directory's time is kept after its contents are copied", past, Files.getLastModifiedTime(tree.resolve("a")));
+        assertEquals("one", Files.readString(one));
+        assertFalse(Files.exists(dest.resolve("mvTree")));
+        try (java.util.stream.Stream<Path> entries = Files.list(dest)) {
+            assertEquals("Only mvTwo.txt should be left", 1, entries.count());
+        }
+
+        // A rename replaces an existing file, several sources need a directory
+        assertTrue(CLI.mv(dest.resolve("mvTwo.txt").toString(), one.toString()));
+        assertEquals("two", Files.readString(one));
+        try {
+            CLI.mv(List.of(one.toString(), tree.toString()), one.toString());
+            fail("Moving several sources onto a file should fail");
+        } catch (java.nio.file.NotDirectoryException e) {
+            // expected
+        }
+
+        // Two sources with the same name would both land on one target: nothing moves
+        Path x = Files.writeString(Files.createDirectories(tree.resolve("x")).resolve("f"), "x");
+        Path y = Files.writeString(Files.createDirectories(tree.resolve("y")).resolve("f"), "y");
+        try {
+            CLI.mv(List.of(x.toString(), y.toString()), dest.toString());
+            fail("Sources sharing a target should be refused");
+        } catch (IOException e) {
+            assertEquals("mv: will not move '" + x + "' and '" + y + "' both to '" + dest.resolve("f") + "'", e.getMessage());
+        }
+        assertEquals("x", Files.readString(x));
+        assertEquals("y", Files.readString(y));
+        assertFalse(Files.exists(dest.resolve("f")));
+        TreeDeleter.delete(dest);
+        TreeDeleter.delete(tree);
+        Files.delete(one);
+    }
+
+    @Test
+    public void globTest() throws Exception {
+        Path dir = Files.createDirectories(TEMP_DIRECTORY.resolve("glob"));
+        for (String name : new String[]{"b.txt", "a.txt", "c.log", ".hidden.txt", "x.tmp", "y.tmp", "sub/d.txt", "sub/deep/e.txt", "sub/deep/f.log"}) {
+            Files.createDirectories(dir.resolve(name).getParent());
+            Files.writeString(dir.resolve(name), name + "\n");
+        }
+        String d = dir.toString();
+
+        assertEquals("Matches are sorted and hidden files skipped", "a.txt\nb.txt", CLI.piping("cat " + d + "/*.txt"));
+        assertEquals("sub/d.txt\nsub/deep/e.txt", CLI.piping("cat " + d + "/sub/**/*.txt"));
+        assertEquals("1 " + d + "/sub/deep/e.txt", CLI.piping("wc -w " + d + "/*/deep/[ef].txt | grep e.txt"));
+        assertEquals("Quoted wildcards are not expanded", "0", CLI.piping("cat " + d + "/a.txt | grep -cF '*.txt'"));
+        assertEquals("Files are listed as named", d + "/a.txt\n" + d + "/b.txt", CLI.piping("ls " + d + "/*.txt"));
+        assertEquals(d + "/b.txt\n" + d + "/a.txt", CLI.piping("ls -r " + d + "/*.txt"));
+
+        CLI.piping("rm " + d + "/*.tmp");
+        assertFalse(Files.exists(dir.resolve("x.tmp")));
+        assertFalse(Files.exists(dir.resolve("y.tmp")));
+
+        // The command runs once, after the expansion: one total, and a move into the
+        // tree being expanded does not meet the files it moved
+        assertEquals("10 " + d + "/sub/d.txt\n15 " + d + "/sub/deep/e.txt\n25 total", CLI.piping("wc -c " + d + "/sub/**/*.txt"));
+        Files.createDirectories(dir.resolve("sub/archive"));
+        CLI.piping("mv " + d + "/**/*.log " + d + "/sub/archive");
+        assertTrue(Files.exists(dir.resolve("sub/archive/c.log")));
+        assertTrue(Files.exists(dir.resolve("sub/archive/f.log")));
+        CLI.piping("mv " + d + "/sub/archive/c.log " + d);
+
+        // A pattern without matches reaches the command unchanged
+        try {
+            CLI.piping("rm " + d + "/*.none");
+            fail("rm of an unmatched pattern should fail");
+        } catch (java.nio.file.NoSuchFileException e) {
+            assertTrue(e.getFile().endsWith("*.none"));
+        }
+
+        // Relative patterns expand against the working directory
+        String home = CLI.pwd();
+        CLI.cd(d);
+        try {
+            assertEquals("c.log\nsub/deep/f.log", CLI.piping("cat **/*.log"));
+            assertEquals("c.log\nsub/archive/f.log", CLI.piping("ls **/*.log"));
+            assertEquals("Files first, then each directory under its name",
+                    "a.txt\nb.txt\n\nsub:\narchive\nd.txt\ndeep\n\nsub/deep:\ne.txt", CLI.piping("ls sub/deep *.txt sub"));
+            assertTrue(((String) CLI.piping("ls -l *.log")).matches("-[-rwx]{9} +6 \\S+ c\\.log"));
+        } finally {
+            CLI.cd(home);
+        }
+        TreeDeleter.delete(dir);
+    }
+
+    @Test
+    public void teeAndRedirectSinkTest() throws Exception {
+        Path dir = Files.createDirectories(TEMP_DIRECTORY.resolve("sink"));
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            text.append("line ").append(i).append(" end\n");
+        }
+        Path input = dir.resolve("in.txt");
+        Files.writeString(input, text);
+
+        // Small buffers and a short ring, so writes wrap around it many times
+        int bufferSize = FileSink.bufferSize;
+        int ringSize = FileSink.ringSize;
+        FileSink.bufferSize = 1000;
+        FileSink.ringSize = 3;
+        try {
+            CLI.piping("cat " + input + " > " + dir.resolve("out.txt"));
+            assertEquals("Redirected output is complete once the command ends", text.toString(), Files.readString(dir.resolve("out.txt")));
+
+            CLI.piping("cat " + input + " >> " + dir.resolve("out.txt"));
+            assertEquals(text.toString() + text, Files.readString(dir.resolve("out.txt")));
+
+            assertEquals("20000", CLI.piping("cat " + input + " | tee " + dir.resolve("a.txt") + " " + dir.resolve("b.txt") + " | wc -l"));
+            assertEquals(text.toString(), Files.readString(dir.resolve("a.txt")));
+            assertEquals(text.toString(), Files.readString(dir.resolve("b.txt")));
+
+            assertEquals("tee without files passes lines on", "20000", CLI.piping("cat " + input + " | tee | wc -l"));
+            try (FileSink.Output nowhere = new FileSink.Output()) {
+                for (int i = 0; i < 20000; i++) nowhere.write("line " + i + " end\n");
+            }
+
+            CLI.piping("cat " + input + " | grep -F 'line 7 ' | tee -a " + dir.resolve("a.txt"));
+            assertEquals(text + "line 7 end\n", Files.readString(dir.resolve("a.txt")));
+        } finally {
+            FileSink.bufferSize = bufferSize;
+            FileSink.ringSize = ringSize;
+        }
+
+        // A sink that syncs forces the file to disk when it is closed
+        FileSink sink = new FileSink(java.nio.channels.FileChannel.open(dir.resolve("sync.txt"),
+                java.nio.file.StandardOpenOption.CREATE, java.nio.file.StandardOpenOption.WRITE), true);
+        try (java.io.Writer writer = new FileSink.Output(sink)) {
+            writer.write("synced\n");
+        }
+        assertEquals("synced\n", Files.readString(dir.resolve("sync.txt")));
+
+        // Short redirects one after another reuse the buffers of the ones before
+        Path appended = dir.resolve("appended.txt");
+        Plan append = CLI.compile("pwd >> " + appended).plans.get(0);
+        CLI.execute(append);
+        int spare = FileSink.spareBuffers();
+        assertTrue(spare > 0);
+        for (int i = 0; i < 200; i++) CLI.execute(append);
+        assertEquals(spare, FileSink.spareBuffers());
+        assertEquals(201, Files.readAllLines(appended).size());
+        TreeDeleter.delete(dir);
+    }
+
+    @Test
+    public void headTailTest() throws Exception {
+        Path dir = Files.createDirectories(TEMP_DIRECTORY.resolve("headtail"));
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            text.append("line ").append(i).append('\n');
+        }
+        Path file = dir.resolve("lines.txt");
+        Files.writeString(file, text);
+        Path unterminated = dir.resolve("unterminated.txt");
+        Files.writeString(unterminated, "a\nb\nc");
+
+        int blockSize = HeadTail.blockSize;
+        HeadTail.blockSize = 16; // lines span blocks
+        try {
+            assertEquals("line 0\nline 1\nline 2", CLI.piping("head -n 3 " + file));
+            assertEquals("line 998\nline 999", CLI.piping("tail -n 2 " + file));
+            assertEquals("line 997\nline 998\nline 999", CLI.piping("tail -3 " + file));
+            assertEquals("All lines of a short file", text.toString().trim(), CLI.piping("tail -n 5000 " + file));
+            assertNull(CLI.piping("tail -n 0 " + file));
+            assertEquals("b\nc", CLI.piping("tail -n 2 " + unterminated));
+        } finally {
+            HeadTail.blockSize = blockSize;
+        }
+
+        // As pipeline stages
+        assertEquals("line 0\nline 1", CLI.piping("cat " + file + " | head -n 2"));
+        assertEquals("line 999", CLI.piping("cat " + file + " | tail -n 1"));
+        assertEquals("line 10", CLI.piping("cat " + file + " | head -n 11 | tail -n 1"));
+
+        // tail -f prints what is appended until the next stage has had enough
+        Object[] result = new Object[1];
+        Thread follower = new Thread(() -> {
+            try {
+                result[0] = CLI.piping("tail -f -n 1 " + file + " | head -n 3");
+            } catch (Exception e) {
+                result[0] = e;
+            }
+        });
+        follower.start();
+        Thread.sleep(300);
+        Files.writeString(file, "appended 1\n", java.nio.file.StandardOpenOption.APPEND);
+        Thread.sleep(300);
+        Files.writeString(file, "appended 2\nappended 3\n", java.nio.file.StandardOpenOption.APPEND);
+        follower.join(10000);
+        assertFalse("tail -f ends once head stops reading", follower.isAlive());
+        assertEquals("line 999\nappended 1\nappended 2", result[0]);
+        TreeDeleter.delete(dir);
+    }
+
+    @Test
+    public void lessTest() throws Exception {
+        Path dir = Files.createDirectories(TEMP_DIRECTORY.resolve("less"));
+        StringBuilder text = new StringBuilder();
+        for (int i = 1; i <= 100000; i++) {
+            text.append("line ").append(i).append('\n');
+        }
+        Path file = dir.resolve("lines.txt");
+        Files.writeString(file, text);
+
+        int screenLines = Pager.screenLines;
+        Pager.screenLines = 3;
+        try {
+            assertEquals("line 1\nline 2\nline 3", firstLines(CLI.piping("less " + file)));
+            assertEquals("line 4\nline 5\nline 6", firstLines(CLI.piping("less")));
+            assertEquals("line 1\nline 2\nline 3", firstLines(CLI.piping("less +b")));
+            assertEquals("line 500\nline 501\nline 502", firstLines(CLI.piping("less +500")));
+            String end = CLI.piping("less +G").toString();
+            assertEquals("line 99998\nline 99999\nline 100000", firstLines(end));
+            assertTrue("The last screen is marked", end.endsWith("(END)"));
+            assertEquals("line 1\nline 2\nline 3", firstLines(CLI.piping("less +g")));
+
+            // Forward search from the line after the top one
+            assertEquals("line 7777\nline 7778\nline 7779", firstLines(CLI.piping("less '+/line 7777'")));
+            assertEquals("line 77770\nline 77771\nline 77772", firstLines(CLI.piping("less +n")));
+            assertEquals("Pattern not found: nothing", CLI.piping("less +/nothing"));
+
+            // The status line numbers the screen once the index has got there
+            while (CLI.session().pager.lineCount() < 0) Thread.sleep(10);
+            assertEquals("lines.txt lines 77771-77773/100000 77%", CLI.piping("less '+/line 7777'").toString().split("\n")[3]);
+
+            // Opening at the end, and as a pipeline stage
+            assertEquals("line 99998", firstLines(CLI.piping("less +G " + file + " | head -n 1")));
+        } finally {
+            Pager.screenLines = screenLines;
+        }
+
+        // On an interactive console the screen is not cut at the console's page
+        java.io.ByteArrayOutputStream console = new java.io.ByteArrayOutputStream();
+        java.io.PrintStream original = System.out;
+        CLI.PrintManager printManager = CLI.session().printManager;
+        System.setOut(new java.io.PrintStream(console, true));
+        try {
+            CLI.session().printManager = new CLI.PrintManager();
+            CLI.execute(CLI.compile("less +g").plans.get(0));
+            String[] screen = console.toString().split(System.lineSeparator());
+            assertEquals("A full screen and its status line", Pager.screenLines + 1, screen.length);
+            assertEquals("line " + Pager.screenLines, screen[Pager.screenLines - 1]);
+
+            // Output of later commands is paged again
+            console.reset();
+            for (int i = 0; i < 20; i++) CLI.session().printManager.println("more " + i);
+            assertTrue(console.toString().endsWith("..."));
+        } finally {
+            System.setOut(original);
+            CLI.session().printManager = printManager;
+        }
+        CLI.piping("less +q");
+        try {
+            CLI.piping("less");
+            fail("less without an open file should fail");
+        } catch (IllegalStateException e) {
+            assertEquals("less: no file is open", e.getMessage());
+        }
+        TreeDeleter.delete(dir);
+    }
+
+    // Whether some thread is inside TreeWalker.hand, where a walk's tasks block
+    private static boolean handing() {
+        for (StackTraceElement[] stack : Thread.getAllStackTraces().values()) {
+            for (StackTraceElement frame : stack) {
+                if (frame.getClassName().equals("TreeWalker") && frame.getMethodName().equals("hand")) return true;
+            }
+        }
+        return false;
+    }
+
+    // The lines of a pager screen, without its status line
+    private static String firstLines(Object screen) {
+        String[] lines = screen.toString().split("\n");
+        return String.join("\n", Arrays.copyOf(lines, Math.min(3, lines.length)));
+    }
+
+    @Test
+    public void duAndFindTest() throws Exception {
+        Path dir = Files.createDirectories(TEMP_DIRECTORY.resolve("walk"));
+        Files.createDirectories(dir.resolve("a/b/c"));
+        Files.write(dir.resolve("a/x.txt"), new byte[1000]);
+        Files.write(dir.resolve("a/b/y.txt"), new byte[3000]);
+        Files.write(dir.resolve("a/b/c/z.log"), new byte[5000]);
+        Files.write(dir.resolve("big.bin"), new byte[2 * 1024 * 1024 + 1]);
+        Files.writeString(dir.resolve("old.txt"), "old");
+        Files.setLastModifiedTime(dir.resolve("old.txt"), java.nio.file.attribute.FileTime.fromMillis(System.currentTimeMillis() - 10 * 86_400_000L));
+        String d = dir.toString();
+
+        assertEquals(d + "/a/b/y.txt\n" + d + "/a/x.txt\n" + d + "/old.txt", CLI.piping("find " + d + " -name '*.txt' | sort"));
+        assertEquals(d + "\n" + d + "/a\n" + d + "/a/b\n" + d + "/a/b/c", CLI.piping("find " + d + " -type d | sort"));
+        assertEquals(d + "/big.bin", CLI.piping("find " + d + " -size +1M"));
+        assertEquals(d + "/old.txt", CLI.piping("find " + d + " -mtime +5"));
+        assertEquals(d + "/a/b/c/z.log", CLI.piping("find " + d + " -iname '*.LOG' -size -10k"));
+        assertNull(CLI.piping("find " + d + " -name '*.LOG'"));
+        assertEquals(d + "/big.bin\n" + d + "/old.txt", CLI.piping("find " + d + " -maxdepth 1 -type f | sort"));
+        assertEquals("Directories come before their entries", d, CLI.piping("find " + d + " | head -n 1"));
+
+        long total = 0;
+        try (java.util.stream.Stream<Path> entries = Files.walk(dir)) {
+            for (Path p : (Iterable<Path>) entries::iterator) total += Files.size(p);
+        }
+        assertEquals(((total + 1023) / 1024) + "\t" + d, CLI.piping("du -s " + d));
+        String[] depthOne = CLI.piping("du -d 1 " + d).toString().split("\n");
+        assertEquals("A directory follows its subdirectories", 2, depthOne.length);
+        assertTrue(depthOne[0].endsWith("\t" + d + "/a"));
+        assertTrue(depthOne[1].endsWith("\t" + d));
+        assertEquals("3.0K\t" + d + "/a/b/y.txt", CLI.piping("du -h " + d + "/a/b/y.txt"));
+
+        assertEquals("500", DiskUsage.format(500, true));
+        assertEquals("1.5K", DiskUsage.format(1536, true));
+        assertEquals("10M", DiskUsage.format(10 * 1024 * 1024, true));
+        assertEquals("2", DiskUsage.format(1025, false));
+
+        // A sink that fails stops the walk; its tasks do not stay blocked on the queue
+        Path wide = Files.createDirectories(dir.resolve("wide"));
+        for (int i = 0; i < 200; i++) Files.createFile(Files.createDirectory(wide.resolve("d" + i)).resolve("f"));
+        TreeWalker.Visitor chatty = (path, name, attrs, depth, lines) -> {
+            for (int i = 0; depth > 0 && i < 300; i++) lines.add(name + " " + i);
+        };
+        try {
+            new TreeWalker("find", Integer.MAX_VALUE, chatty).walk(wide, d, line -> {
+                throw new java.io.UncheckedIOException(new IOException("disk full"));
+            });
+            fail("The sink's failure should end the walk");
+        } catch (java.io.UncheckedIOException e) {
+            assertEquals("disk full", e.getCause().getMessage());
+        }
+        assertFalse("No task is left blocked handing lines over", handing());
+        TreeDeleter.delete(wide);
+        assertEquals("4", CLI.piping("find " + d + " -type d | wc -l").toString().trim());
+        TreeDeleter.delete(dir);
+    }
+
+    @Test
+    public void uniqAndDistinctTest() throws Exception {
+        Path file = TEMP_DIRECTORY.resolve("uniq.txt");
+        Files.write(file, List.of("b", "b", "a", "b", "c", "c", "c", "B"));
+
+        assertEquals("b\na\nb\nc\nB", CLI.piping("uniq " + file));
+        assertEquals("      2 b\n      1 a\n      1 b\n      3 c\n      1 B", CLI.piping("cat " + file + " | uniq -c"));
+        assertEquals("b\nc", CLI.piping("uniq -d " + file));
+        assertEquals("First occurrences, in input order", "b\na\nc\nB", CLI.piping("cat " + file + " | distinct"));
+        assertEquals("a\nb\nc", CLI.piping("sort -u " + file));
+        assertEquals("Case folded, the first of equal lines kept", "c\nb\na", CLI.piping("cat " + file + " | sort -ru"));
+
+        LineSet small = new LineSet();
+        small.add("one line");
+        assertTrue("A small set holds a small buffer", small.textBytes() <= 64 * 1024);
+
+        LineSet.segmentSize = 64; // many segments, and lines longer than one
+        try {
+            LineSet set = new LineSet();
+            for (int i = 0; i < 5000; i++) assertTrue(set.add("line " + i));
+            assertTrue(set.add("\u00e9t\u00e9"));
+            assertTrue(set.add("x".repeat(2000)));
+            assertTrue(set.add(""));
+            for (int i = 0; i < 5000; i += 7) assertFalse(set.add("line " + i));
+            assertFalse(set.add("\u00e9t\u00e9"));
+            assertFalse(set.add("x".repeat(2000)));
+            assertFalse(set.add(""));
+            assertTrue(set.add("x".repeat(1999)));
+            assertEquals(5004, set.size());
+        } finally {
+            LineSet.segmentSize = 64 * 1024;
+        }
+
+        // A line longer than the largest buffer gets its own; the lines after it don't go there
+        LineSet wide = new LineSet();
+        String longLine = "y".repeat(5 * 1024 * 1024);
+        assertTrue(wide.add("a"));
+        assertTrue(wide.add(longLine));
+        assertTrue(wide.add(""));
+        assertFalse(wide.add(""));
+        assertFalse(wide.add("a"));
+        assertFalse(wide.add(longLine));
+        for (int i = 0; i < 1000; i++) assertTrue(wide.add("after " + i));
+        for (int i = 0; i < 1000; i++) assertFalse(wide.add("after " + i));
+    }
+
+}
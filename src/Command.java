@@ -0,0 +1,5 @@
+// A command that can run as a stage of a pipeline. args[0] is the command name,
+// the rest are its arguments as split by the tokenizer.
+public interface Command {
+    void run(String[] args, Pipeline.Pipe in, Pipeline.Pipe out) throws Exception;
+}
@@ -0,0 +1,34 @@
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Maps command names to their handlers and holds the text shown by help.
+// Help entries can also describe variants (ls -a) and operators (|, >).
+public class CommandRegistry {
+    private final Map<String, Command> handlers = new LinkedHashMap<>();
+    private final Map<String, String> descriptions = new LinkedHashMap<>();
+
+    public CommandRegistry register(String name, String description, Command handler) {
+        handlers.put(name, handler);
+        descriptions.put(name, description);
+        return this;
+    }
+
+    // A help entry with no handler of its own
+    public CommandRegistry describe(String name, String description) {
+        descriptions.put(name, description);
+        return this;
+    }
+
+    public Command lookup(String name) {
+        return handlers.get(name);
+    }
+
+    public String description(String name) {
+        return descriptions.get(name);
+    }
+
+    public Map<String, String> descriptions() {
+        return Collections.unmodifiableMap(descriptions);
+    }
+}
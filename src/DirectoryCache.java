@@ -0,0 +1,183 @@
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Sorted snapshots of directory listings, so repeated ls calls on the same
+// directory do not rescan it. Snapshots are evicted least recently used once the
+// cache holds too many names, and dropped when a WatchService reports a change or
+// when one of the CLI's own commands modifies the directory. A directory that
+// cannot be watched is not cached, since changes made by other processes would
+// never be seen.
+public class DirectoryCache {
+    static int maxNames = Integer.getInteger("cli.ls.cache.names", 1_000_000);   // names over all snapshots
+    static int maxDirectoryNames = maxNames / 10;                                // bigger directories are not cached
+    static int maxWatches = Integer.getInteger("cli.ls.cache.watches", 4096);    // directories watched at once
+
+    private static final Map<Path, List<String>> snapshots = new LinkedHashMap<>(16, 0.75f, true);
+    private static final Map<Path, WatchKey> watched = new HashMap<>();
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final Map<Path, Object> loading = new HashMap<>(); // listings in progress
+    private static long cachedNames = 0;
+    private static WatchService watcher;
+
+    // Returns every name in the directory, sorted, or null if it is too big to cache
+    static List<String> list(Path directory) throws IOException {
+        Path key = directory.toAbsolutePath().normalize();
+        synchronized (DirectoryCache.class) {
+            List<String> names = snapshots.get(key);
+            if (names != null) {
+                hits.incrementAndGet();
+                return names;
+            }
+        }
+        misses.incrementAndGet();
+        // Watch before listing, so a change made while listing still invalidates
+        Object token = new Object();
+        synchronized (DirectoryCache.class) {
+            loading.put(key, token);
+        }
+        boolean watching = watch(key);
+        List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(key)) {
+            for (Path entry : stream) {
+                if (names.size() == maxDirectoryNames) {
+                    synchronized (DirectoryCache.class) {
+                        loading.remove(key, token);
+                        unwatch(key);
+                    }
+                    return null;
+                }
+                names.add(entry.getFileName().toString());
+            }
+        }
+        Collections.sort(names);
+        names = Collections.unmodifiableList(names);
+        synchronized (DirectoryCache.class) {
+            if (loading.remove(key, token) && watching) {
+                put(key, names);
+            }
+        }
+        return names;
+    }
+
+    private static void put(Path key, List<String> names) {
+        List<String> old = snapshots.put(key, names);
+        if (old != null) cachedNames -= old.size();
+        cachedNames += names.size();
+        Iterator<Map.Entry<Path, List<String>>> eldest = snapshots.entrySet().iterator();
+        while (cachedNames > maxNames && eldest.hasNext()) {
+            Map.Entry<Path, List<String>> e = eldest.next();
+            cachedNames -= e.getValue().size();
+            unwatch(e.getKey());
+            eldest.remove();
+        }
+    }
+
+    // Drops the snapshot of a directory after it has been changed, and its watch:
+    // the next listing watches it again, and one that never comes should not keep
+    // a watch for the rest of the process
+    static synchronized void invalidate(Path directory) {
+        if (directory == null) return;
+        Path key = directory.toAbsolutePath().normalize();
+        loading.remove(key);
+        unwatch(key);
+        List<String> old = snapshots.remove(key);
+        if (old != null) cachedNames -= old.size();
+    }
+
+    // Drops a directory, everything cached below it, and its parent's listing
+    static synchronized void invalidateTree(Path root) {
+        Path key = root.toAbsolutePath().normalize();
+        invalidate(key.getParent());
+        loading.keySet().removeIf(p -> p.startsWith(key));
+        Iterator<Map.Entry<Path, List<String>>> it = snapshots.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Path, List<String>> e = it.next();
+            if (e.getKey().startsWith(key)) {
+                cachedNames -= e.getValue().size();
+                unwatch(e.getKey());
+                it.remove();
+            }
+        }
+    }
+
+    static synchronized void clear() {
+        loading.clear();
+        for (Path p : new ArrayList<>(watched.keySet())) unwatch(p);
+        snapshots.clear();
+        cachedNames = 0;
+    }
+
+    static synchronized boolean watching(Path directory) {
+        return watched.containsKey(directory.toAbsolutePath().normalize());
+    }
+
+    static long hits() {
+        return hits.get();
+    }
+
+    static long misses() {
+        return misses.get();
+    }
+
+    static synchronized String stats() {
+        return "ls cache: " + hits.get() + " hits, " + misses.get() + " misses, "
+                + snapshots.size() + " directories, " + cachedNames + " names";
+    }
+
+    // Watches directory for entries created or deleted; false if it cannot be watched
+    private static synchronized boolean watch(Path directory) {
+        if (watched.containsKey(directory)) return true;
+        if (watched.size() >= maxWatches) return false; // stay clear of the system's watch limit
+        try {
+            if (watcher == null) {
+                watcher = FileSystems.getDefault().newWatchService();
+                Thread t = new Thread(DirectoryCache::processEvents, "ls-cache-watcher");
+                t.setDaemon(true);
+                t.start();
+            }
+            watched.put(directory, directory.register(watcher,
+                    StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE));
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            return false; // at the inotify limit, or a file system without watches
+        }
+    }
+
+    private static void unwatch(Path directory) {
+        WatchKey key = watched.remove(directory);
+        if (key != null) key.cancel();
+    }
+
+    private static void processEvents() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                key.pollEvents();
+                invalidate((Path) key.watchable());
+                if (!key.reset()) {
+                    synchronized (DirectoryCache.class) {
+                        watched.values().remove(key);
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // watcher thread ends with the JVM
+        }
+    }
+}
@@ -0,0 +1,86 @@
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+// The du command: the bytes under each directory, added up by TreeWalker on all
+// cores. Sizes are apparent sizes (what the files hold, like du -b), since Java
+// cannot read the blocks a file occupies. A directory is printed once everything
+// below it has been counted, so it always follows its subdirectories.
+public class DiskUsage {
+
+    // Options of du: -s totals only, -h human-readable sizes, -d <depth> (or
+    // --max-depth=<depth>), then paths
+    static class Options {
+        boolean human;
+        int maxDepth = Integer.MAX_VALUE; // deepest directory printed
+        final List<String> paths = new ArrayList<>();
+
+        static Options parse(String[] args, int from) {
+            Options o = new Options();
+            for (int i = from; i < args.length; i++) {
+                String a = args[i];
+                if (a.equals("-d")) {
+                    if (++i == args.length) throw new IllegalArgumentException("du: option requires an argument -- 'd'");
+                    o.maxDepth = depth(args[i]);
+                } else if (a.startsWith("--max-depth=")) {
+                    o.maxDepth = depth(a.substring("--max-depth=".length()));
+                } else if (a.startsWith("-") && a.length() > 1) {
+                    for (char c : a.substring(1).toCharArray()) {
+                        if (c == 's') o.maxDepth = 0;
+                        else if (c == 'h') o.human = true;
+                        else throw new IllegalArgumentException("du: invalid option -- '" + c + "'");
+                    }
+                } else {
+                    o.paths.add(a);
+                }
+            }
+            if (o.paths.isEmpty()) o.paths.add(".");
+            return o;
+        }
+
+        private static int depth(String value) {
+            try {
+                int n = Integer.parseInt(value);
+                if (n >= 0) return n;
+            } catch (NumberFormatException e) {
+                // reported below
+            }
+            throw new IllegalArgumentException("du: invalid maximum depth '" + value + "'");
+        }
+    }
+
+    // Writes "size<TAB>path" for every directory down to the maximum depth, and
+    // for every path that is a file
+    static void du(Options options, Pipeline.LineSink out) throws Exception {
+        TreeWalker.Visitor visitor = new TreeWalker.Visitor() {
+            @Override
+            public void visit(Path path, String name, BasicFileAttributes attrs, int depth, List<String> lines) {
+                if (depth == 0 && !attrs.isDirectory()) lines.add(format(attrs.size(), options.human) + "\t" + name);
+            }
+
+            @Override
+            public void leave(Path directory, String name, int depth, long bytes, List<String> lines) {
+                if (depth <= options.maxDepth) lines.add(format(bytes, options.human) + "\t" + name);
+            }
+        };
+        for (String name : options.paths) {
+            new TreeWalker("du", Integer.MAX_VALUE, visitor).walk(CLI.existing(name), name, out);
+        }
+    }
+
+    // Kilobytes rounded up like du, or with -h one decimal below 10 and a unit
+    static String format(long bytes, boolean human) {
+        if (!human) return Long.toString((bytes + 1023) / 1024);
+        if (bytes < 1024) return Long.toString(bytes);
+        String units = "KMGTPE";
+        double size = bytes;
+        int unit = -1;
+        while (size >= 1024 && unit < units.length() - 1) {
+            size /= 1024;
+            unit++;
+        }
+        size = Math.ceil(size * 10) / 10;
+        return (size < 10 ? String.format("%.1f", size) : String.format("%.0f", Math.ceil(size))) + units.charAt(unit);
+    }
+}
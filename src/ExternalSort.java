@@ -0,0 +1,333 @@
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+// Sorts lines within a memory budget. Lines are collected until the budget is
+// exceeded, then sorted and spilled to a temporary run file; at the end the runs
+// are merged k ways and streamed to the sink. With -u duplicates are dropped as
+// they arrive, by hashing into a LineSet, so only distinct lines are sorted.
+public class ExternalSort {
+    static final int MAX_MERGE_WIDTH = 64;      // runs merged at once
+    static final int RUN_BUFFER = 64 * 1024;    // read/write buffer per run file
+    static long memoryBudget = Long.getLong("cli.sort.memory", 64L * 1024 * 1024);
+    // Buffers with at least this many lines are sorted on all cores; 0 disables it
+    static int parallelThreshold = Integer.getInteger("cli.sort.parallel", 8192);
+
+    // Options of the sort command: -r, -n, -u, -k <field>, -t <separator>
+    static class Options {
+        boolean reverse;
+        boolean numeric;
+        boolean unique;
+        boolean caseSensitive; // plain String order, used for ls
+        int keyField;        // 1-based, 0 means the whole line
+        String separator;    // null means runs of whitespace
+        String file;         // input file instead of the previous stage
+
+        static Options parse(String[] args, int from) {
+            Options o = new Options();
+            for (int i = from; i < args.length; i++) {
+                String a = args[i];
+                if (a.equals("-k") && i + 1 < args.length) {
+                    o.keyField = Integer.parseInt(args[++i]);
+                } else if (a.equals("-t") && i + 1 < args.length) {
+                    o.separator = args[++i];
+                } else if (a.startsWith("-") && a.length() > 1) {
+                    for (char c : a.substring(1).toCharArray()) {
+                        if (c == 'r') o.reverse = true;
+                        else if (c == 'n') o.numeric = true;
+                        else if (c == 'u') o.unique = true;
+                        else throw new IllegalArgumentException("sort: invalid option -- '" + c + "'");
+                    }
+                } else {
+                    o.file = a;
+                }
+            }
+            return o;
+        }
+
+        // The text a line is compared by: the selected field, or the whole line
+        String key(String line) {
+            if (keyField <= 0) return line;
+            String[] fields = separator == null ? line.trim().split("\\s+") : line.split(java.util.regex.Pattern.quote(separator), -1);
+            return keyField <= fields.length ? fields[keyField - 1] : "";
+        }
+
+        Comparator<String> comparator() {
+            Comparator<String> c;
+            Comparator<String> order = caseSensitive ? Comparator.naturalOrder() : String.CASE_INSENSITIVE_ORDER;
+            if (numeric) {
+                c = Comparator.<String>comparingDouble(line -> number(key(line)))
+                        .thenComparing(this::key, order);
+            } else if (keyField > 0) {
+                c = Comparator.comparing(this::key, order);
+            } else {
+                c = order;
+            }
+            return reverse ? c.reversed() : c;
+        }
+
+        // What two lines must share to be equal for -u: the compared key, folded
+        // unless case matters (equal numbers follow from equal keys)
+        String identity(String line) {
+            String k = key(line);
+            return caseSensitive ? k : fold(k);
+        }
+
+        // Comparison key of a line, computed once instead of on every comparison
+        Keyed keyed(String line) {
+            String k = key(line);
+            return new Keyed(line, caseSensitive ? k : fold(k), numeric ? number(k) : 0);
+        }
+
+        Comparator<Keyed> keyedComparator() {
+            Comparator<Keyed> c = numeric
+                    ? (a, b) -> {
+                        int n = Double.compare(a.number, b.number);
+                        return n != 0 ? n : a.folded.compareTo(b.folded);
+                    }
+                    : (a, b) -> a.folded.compareTo(b.folded);
+            return reverse ? c.reversed() : c;
+        }
+
+        // Leading number of a key like sort -n: non-numeric keys count as zero
+        static double number(String key) {
+            String s = key.trim();
+            int end = 0;
+            if (end < s.length() && (s.charAt(end) == '-' || s.charAt(end) == '+')) end++;
+            while (end < s.length() && (Character.isDigit(s.charAt(end)) || s.charAt(end) == '.')) end++;
+            try {
+                return Double.parseDouble(s.substring(0, end));
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+    }
+
+    // A line with its precomputed sort key
+    static final class Keyed {
+        final String line;
+        final String folded;
+        final double number;
+
+        Keyed(String line, String folded, double number) {
+            this.line = line;
+            this.folded = folded;
+            this.number = number;
+        }
+    }
+
+    // Case folding that makes String.compareTo order like CASE_INSENSITIVE_ORDER,
+    // which compares toLowerCase(toUpperCase(c)) of each character
+    static String fold(String s) {
+        int i = 0;
+        while (i < s.length()) {
+            char c = s.charAt(i);
+            if (Character.toLowerCase(Character.toUpperCase(c)) != c) break;
+            i++;
+        }
+        if (i == s.length()) return s; // already folded, no copy
+        char[] chars = s.toCharArray();
+        for (; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+        }
+        return new String(chars);
+    }
+
+    // Sorts lines in place. Large inputs compute every key once and are sorted with
+    // Arrays.parallelSort, which is stable and gives the same order as the comparator.
+    static void sort(String[] lines, Options options) {
+        if (parallelThreshold <= 0 || lines.length < parallelThreshold) {
+            Arrays.sort(lines, options.comparator());
+            return;
+        }
+        Keyed[] keyed = new Keyed[lines.length];
+        Arrays.parallelSetAll(keyed, i -> options.keyed(lines[i]));
+        Arrays.parallelSort(keyed, options.keyedComparator());
+        Arrays.parallelSetAll(lines, i -> keyed[i].line);
+    }
+
+    private final Options options;
+    private final Comparator<String> comparator;
+    private final long budget;
+    private final List<String> buffer = new ArrayList<>();
+    private final List<Path> runs = new ArrayList<>();
+    private final LineSet seen; // for -u
+    private long buffered;
+    private int spills;
+
+    public ExternalSort(Options options) {
+        this(options, memoryBudget);
+    }
+
+    public ExternalSort(Options options, long budget) {
+        this.options = options;
+        this.comparator = options.comparator();
+        this.budget = budget;
+        this.seen = options.unique ? new LineSet() : null;
+    }
+
+    public void add(String line) throws IOException {
+        if (seen != null && !seen.add(options.identity(line))) return; // the first of equal lines is kept, as in a stable sort
+        buffer.add(line);
+        buffered += estimate(line);
+        if (buffered >= budget) {
+            spill();
+        }
+    }
+
+    // Rough heap cost of a String held in the buffer
+    static long estimate(String line) {
+        return 56 + 2L * line.length();
+    }
+
+    // Number of sorted runs written to disk
+    public int spilledRuns() {
+        return spills;
+    }
+
+    // Sorts what is left and streams the result to out, cleaning up the run files
+    public void finish(Pipeline.LineSink out) throws Exception {
+        try {
+            if (runs.isEmpty()) {
+                for (String line : sortBuffer()) {
+                    out.write(line);
+                }
+                buffer.clear();
+                return;
+            }
+            spill();
+            while (runs.size() > MAX_MERGE_WIDTH) {
+                List<Path> group = new ArrayList<>(runs.subList(0, MAX_MERGE_WIDTH));
+                runs.subList(0, MAX_MERGE_WIDTH).clear();
+                Path merged = Files.createTempFile("sort-run", ".txt");
+                merged.toFile().deleteOnExit();
+                try (BufferedWriter w = Files.newBufferedWriter(merged, StandardCharsets.UTF_8)) {
+                    merge(group, line -> {
+                        w.write(line);
+                        w.write('\n');
+                    });
+                }
+                runs.add(0, merged); // merged lines came first, keep them first for stability
+            }
+            merge(runs, out);
+        } finally {
+            for (Path run : runs) {
+                Files.deleteIfExists(run);
+            }
+            runs.clear();
+        }
+    }
+
+    private String[] sortBuffer() {
+        String[] lines = buffer.toArray(new String[0]);
+        sort(lines, options);
+        return lines;
+    }
+
+    private void spill() throws IOException {
+        if (buffer.isEmpty()) return;
+        String[] sorted = sortBuffer();
+        Path run = Files.createTempFile("sort-run", ".txt");
+        run.toFile().deleteOnExit();
+        try (BufferedWriter w = new BufferedWriter(Files.newBufferedWriter(run, StandardCharsets.UTF_8), RUN_BUFFER)) {
+            for (String line : sorted) {
+                w.write(line);
+                w.write('\n');
+            }
+        }
+        Metrics.wrote(Files.size(run));
+        runs.add(run);
+        spills++;
+        buffer.clear();
+        buffered = 0;
+    }
+
+    // Reads a run back a line at a time. Lines end at '\n' only, as they were
+    // written: BufferedReader.readLine would also end one at a lone '\r', which a
+    // line may contain.
+    private static final class RunReader implements Closeable {
+        private final Reader in;
+        private final char[] buffer = new char[RUN_BUFFER];
+        private final StringBuilder line = new StringBuilder();
+        private int position;
+        private int limit;
+
+        RunReader(Path run) throws IOException {
+            in = new InputStreamReader(Files.newInputStream(run), StandardCharsets.UTF_8);
+        }
+
+        String readLine() throws IOException {
+            line.setLength(0);
+            while (true) {
+                if (position == limit) {
+                    int n = in.read(buffer, 0, buffer.length);
+                    if (n < 0) return line.length() > 0 ? line.toString() : null;
+                    position = 0;
+                    limit = n;
+                }
+                for (int i = position; i < limit; i++) {
+                    if (buffer[i] == '\n') {
+                        line.append(buffer, position, i - position);
+                        position = i + 1;
+                        return line.toString();
+                    }
+                }
+                line.append(buffer, position, limit - position);
+                position = limit;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    // Head line of one run during a merge; ties go to the earlier run so the sort stays stable
+    private static class Cursor {
+        final RunReader reader;
+        final int index;
+        String line;
+
+        Cursor(RunReader reader, int index) {
+            this.reader = reader;
+            this.index = index;
+        }
+    }
+
+    private void merge(List<Path> group, Pipeline.LineSink out) throws Exception {
+        PriorityQueue<Cursor> heap = new PriorityQueue<>(Math.max(1, group.size()),
+                (a, b) -> {
+                    int c = comparator.compare(a.line, b.line);
+                    return c != 0 ? c : Integer.compare(a.index, b.index);
+                });
+        List<RunReader> readers = new ArrayList<>();
+        try {
+            for (int i = 0; i < group.size(); i++) {
+                Metrics.read(Files.size(group.get(i)));
+                RunReader r = new RunReader(group.get(i));
+                readers.add(r);
+                Cursor cursor = new Cursor(r, i);
+                if ((cursor.line = r.readLine()) != null) heap.add(cursor);
+            }
+            while (!heap.isEmpty()) {
+                Cursor top = heap.poll();
+                out.write(top.line);
+                if ((top.line = top.reader.readLine()) != null) heap.add(top);
+            }
+        } finally {
+            for (RunReader r : readers) r.close();
+            for (Path p : group) Files.deleteIfExists(p);
+        }
+    }
+}
@@ -0,0 +1,345 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.CoderResult;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// The file end of a > or >> redirect and of tee. Output is encoded into large
+// buffers that are queued on a ring and written by the sink's writer thread, which
+// takes every buffer waiting at once and hands them to the file in one gathering
+// write. A command printing many lines costs a few large writes instead of a
+// syscall per line and only waits for the disk when the ring is full. flush()
+// returns once everything queued is in the file; close() also forces it to disk
+// when the sink syncs. A script runs many short redirects, so neither the
+// buffers nor the threads are made for one: writer threads come from a shared
+// pool and the buffers of a closed sink are kept for the next one.
+final class FileSink implements Closeable {
+    static int bufferSize = Integer.getInteger("cli.sink.buffer", 64 * 1024); // bytes per buffer
+    static int ringSize = Integer.getInteger("cli.sink.ring", 16);            // buffers queued per sink
+    static boolean fsync = Boolean.getBoolean("cli.sink.fsync");               // force files to disk on close
+
+    private static final ExecutorService writers = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "sink");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final ArrayDeque<ByteBuffer> spare = new ArrayDeque<>(); // buffers of closed outputs
+
+    // A buffer from a closed output if there is one, else a new one
+    private static ByteBuffer buffer() {
+        synchronized (spare) {
+            ByteBuffer b;
+            while ((b = spare.poll()) != null) {
+                if (b.capacity() == bufferSize) return b;
+            }
+        }
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    // Keeps a buffer for the next output; a ring's worth is enough for a script's redirects
+    private static void keep(ByteBuffer b) {
+        synchronized (spare) {
+            if (spare.size() <= ringSize && b.capacity() == bufferSize) {
+                b.clear();
+                spare.push(b);
+            }
+        }
+    }
+
+    static int spareBuffers() {
+        synchronized (spare) {
+            return spare.size();
+        }
+    }
+
+    // Encoded output. The same chunk can be queued to several sinks; it is reused
+    // once all of them have written it.
+    static final class Chunk {
+        final ByteBuffer bytes = buffer();
+        private final AtomicInteger pending = new AtomicInteger();
+        private final Output owner;
+
+        Chunk(Output owner) {
+            this.owner = owner;
+        }
+
+        void release() {
+            if (pending.decrementAndGet() == 0) {
+                bytes.clear();
+                owner.recycle(this);
+            }
+        }
+    }
+
+    private final FileChannel channel;
+    private final boolean sync;
+    private final Chunk[] chunks = new Chunk[ringSize];
+    private final ByteBuffer[] views = new ByteBuffer[ringSize]; // each sink's own position in a chunk
+    private int head;          // next slot to fill
+    private int count;         // filled slots, including the ones being written
+    private long queued;
+    private long written;
+    private IOException failure;
+    private boolean closing;
+    private final Future<?> writer;
+
+    FileSink(FileChannel channel, boolean sync) {
+        this.channel = channel;
+        this.sync = sync;
+        this.writer = writers.submit(this::drain);
+    }
+
+    // A sink writing file from its start, or from its end when appending. A file
+    // it creates is a new name in its directory, so the cached listing is dropped
+    // at once rather than when the directory watch gets round to it.
+    static FileSink open(File file, boolean append) throws IOException {
+        boolean existed = file.exists();
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING);
+        if (!existed) CLI.changed(file.toPath());
+        return new FileSink(channel, fsync);
+    }
+
+    // The file, for transferTo once the sink has been flushed
+    FileChannel channel() {
+        return channel;
+    }
+
+    // Queues a chunk to be written; the chunk is released once it has been
+    synchronized void submit(Chunk chunk) throws IOException {
+        try {
+            while (count == chunks.length && failure == null) wait();
+        } catch (InterruptedException e) {
+            chunk.release();
+            throw new InterruptedIOException();
+        }
+        if (failure != null) {
+            chunk.release();
+            throw failure;
+        }
+        chunks[head] = chunk;
+        views[head] = chunk.bytes.duplicate();
+        head = (head + 1) % chunks.length;
+        count++;
+        queued++;
+        notifyAll();
+    }
+
+    // Waits until everything queued so far is in the file
+    synchronized void flush() throws IOException {
+        long target = queued;
+        try {
+            while (written < target) wait();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        if (failure != null) throw failure;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closing = true;
+            notifyAll();
+        }
+        try {
+            writer.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        try (channel) {
+            if (failure != null) throw failure;
+            if (sync) channel.force(true);
+        }
+    }
+
+    // The writer thread: takes all queued chunks and writes them in one go
+    private void drain() {
+        ByteBuffer[] batch = new ByteBuffer[chunks.length];
+        Chunk[] taken = new Chunk[chunks.length];
+        while (true) {
+            int n;
+            synchronized (this) {
+                while (count == 0 && !closing) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        closing = true;
+                    }
+                }
+                if (count == 0) return;
+                n = count;
+                int first = Math.floorMod(head - count, chunks.length);
+                for (int i = 0; i < n; i++) {
+                    int slot = (first + i) % chunks.length;
+                    taken[i] = chunks[slot];
+                    batch[i] = views[slot];
+                    chunks[slot] = null;
+                    views[slot] = null;
+                }
+            }
+            IOException error = null;
+            try {
+                while (batch[n - 1].hasRemaining()) {
+                    channel.write(batch, 0, n);
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+            for (int i = 0; i < n; i++) {
+                taken[i].release();
+                taken[i] = null;
+                batch[i] = null;
+            }
+            synchronized (this) {
+                if (error != null && failure == null) failure = error;
+                count -= n;
+                written += n;
+                notifyAll();
+            }
+        }
+    }
+
+    // A Writer over one or more sinks. Characters are encoded once, into a chunk
+    // that every sink writes, so tee to several files copies nothing per file.
+    static final class Output extends Writer {
+        private final FileSink[] sinks;
+        private final CharsetEncoder encoder = Charset.defaultCharset().newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final ArrayDeque<Chunk> free = new ArrayDeque<>();
+        private int allocated;
+        private Chunk current;
+        private char carry; // high surrogate whose low half has not been written yet
+        private boolean closed;
+
+        Output(FileSink... sinks) {
+            this.sinks = sinks;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            encode(CharBuffer.wrap(cbuf, off, len));
+        }
+
+        @Override
+        public void write(String s, int off, int len) throws IOException {
+            encode(CharBuffer.wrap(s, off, off + len));
+        }
+
+        private void encode(CharBuffer in) throws IOException {
+            if (closed) throw new IOException("Stream closed");
+            if (!in.hasRemaining()) return;
+            if (current == null) current = take();
+            if (carry != 0) {
+                // complete the surrogate pair the last write ended in
+                CharBuffer pair = CharBuffer.wrap(new char[]{carry, in.get()});
+                carry = 0;
+                encode(pair);
+            }
+            while (encoder.encode(in, current.bytes, false) == CoderResult.OVERFLOW) {
+                publish();
+            }
+            if (in.hasRemaining()) carry = in.get();
+        }
+
+        // Queues the chunk being filled to every sink
+        private void publish() throws IOException {
+            Chunk chunk = current;
+            current = take();
+            if (sinks.length == 0) {
+                // nothing will write or release it
+                chunk.bytes.clear();
+                recycle(chunk);
+                return;
+            }
+            chunk.bytes.flip();
+            chunk.pending.set(sinks.length);
+            IOException error = null;
+            for (FileSink sink : sinks) {
+                try {
+                    sink.submit(chunk);
+                } catch (IOException e) {
+                    if (error == null) error = e;
+                }
+            }
+            if (error != null) throw error;
+        }
+
+        // A free chunk; one more than a ring holds are enough to keep every sink busy
+        private Chunk take() throws IOException {
+            synchronized (free) {
+                while (free.isEmpty()) {
+                    if (allocated <= ringSize) {
+                        allocated++;
+                        return new Chunk(this);
+                    }
+                    try {
+                        free.wait();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                return free.pop();
+            }
+        }
+
+        private void recycle(Chunk chunk) {
+            synchronized (free) {
+                free.push(chunk);
+                free.notifyAll();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (closed) return;
+            if (current != null && current.bytes.position() > 0) publish();
+            for (FileSink sink : sinks) sink.flush();
+        }
+
+        // Flushes, then closes every sink, syncing the ones that sync. The chunks
+        // the sinks have let go of are kept for the next output.
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            IOException error = null;
+            try {
+                flush();
+            } catch (IOException e) {
+                error = e;
+            }
+            closed = true;
+            for (FileSink sink : sinks) {
+                try {
+                    sink.close();
+                } catch (IOException e) {
+                    if (error == null) error = e;
+                }
+            }
+            synchronized (free) {
+                if (current != null) keep(current.bytes);
+                for (Chunk chunk : free) keep(chunk.bytes);
+                free.clear();
+                current = null;
+            }
+            if (error != null) throw error;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.BiPredicate;
+
+// The find command: walks the given directories with TreeWalker and prints every
+// entry that passes all tests. Tests only look at the file name and the
+// attributes the walk has already read, so nothing is read twice.
+public class Find {
+
+    // Options of find: paths, then -name, -iname, -type, -size, -mtime, -mmin and -maxdepth
+    static class Options {
+        final List<String> paths = new ArrayList<>();
+        final List<BiPredicate<Path, BasicFileAttributes>> tests = new ArrayList<>();
+        int maxDepth = Integer.MAX_VALUE;
+
+        static Options parse(String[] args, int from) {
+            Options o = new Options();
+            long now = System.currentTimeMillis();
+            int i = from;
+            while (i < args.length && !args[i].startsWith("-")) {
+                o.paths.add(args[i++]);
+            }
+            if (o.paths.isEmpty()) o.paths.add(".");
+            for (; i < args.length; i++) {
+                String test = args[i];
+                if (i + 1 == args.length) throw new IllegalArgumentException("find: missing argument to '" + test + "'");
+                String value = args[++i];
+                switch (test) {
+                    case "-name": {
+                        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + value);
+                        o.tests.add((path, attrs) -> path.getFileName() != null && matcher.matches(path.getFileName()));
+                        break;
+                    }
+                    case "-iname": {
+                        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + value.toLowerCase(Locale.ROOT));
+                        o.tests.add((path, attrs) -> path.getFileName() != null
+                                && matcher.matches(Path.of(path.getFileName().toString().toLowerCase(Locale.ROOT))));
+                        break;
+                    }
+                    case "-type":
+                        if (value.equals("f")) o.tests.add((path, attrs) -> attrs.isRegularFile());
+                        else if (value.equals("d")) o.tests.add((path, attrs) -> attrs.isDirectory());
+                        else if (value.equals("l")) o.tests.add((path, attrs) -> attrs.isSymbolicLink());
+                        else throw new IllegalArgumentException("find: unknown type '" + value + "'");
+                        break;
+                    case "-size": {
+                        // find's units: 512-byte blocks unless c (bytes), k, M or G follows
+                        char unit = value.charAt(value.length() - 1);
+                        long bytes = unit == 'c' ? 1 : unit == 'k' ? 1024 : unit == 'M' ? 1 << 20 : unit == 'G' ? 1 << 30 : 512;
+                        String number = Character.isDigit(unit) ? value : value.substring(0, value.length() - 1);
+                        Comparison size = Comparison.parse(test, number);
+                        o.tests.add((path, attrs) -> size.matches((attrs.size() + bytes - 1) / bytes));
+                        break;
+                    }
+                    case "-mtime":
+                    case "-mmin": {
+                        long unit = test.equals("-mtime") ? 86_400_000L : 60_000L;
+                        Comparison age = Comparison.parse(test, value);
+                        o.tests.add((path, attrs) -> age.matches((now - attrs.lastModifiedTime().toMillis()) / unit));
+                        break;
+                    }
+                    case "-maxdepth":
+                        o.maxDepth = Comparison.number(test, value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("find: unknown predicate '" + test + "'");
+                }
+            }
+            return o;
+        }
+    }
+
+    // A number after -size, -mtime or -mmin: +n more than n, -n less than n, n exactly n
+    private static final class Comparison {
+        final int sign;
+        final long value;
+
+        Comparison(int sign, long value) {
+            this.sign = sign;
+            this.value = value;
+        }
+
+        static Comparison parse(String test, String text) {
+            int sign = text.startsWith("+") ? 1 : text.startsWith("-") ? -1 : 0;
+            return new Comparison(sign, number(test, sign == 0 ? text : text.substring(1)));
+        }
+
+        static int number(String test, String text) {
+            try {
+                int n = Integer.parseInt(text);
+                if (n >= 0) return n;
+            } catch (NumberFormatException e) {
+                // reported below
+            }
+            throw new IllegalArgumentException("find: invalid argument '" + text + "' to '" + test + "'");
+        }
+
+        boolean matches(long n) {
+            return Long.signum(n - value) == sign;
+        }
+    }
+
+    // Writes the entries under every path that pass all tests
+    static void find(Options options, Pipeline.LineSink out) throws Exception {
+        TreeWalker.Visitor visitor = (path, name, attrs, depth, lines) -> {
+            for (BiPredicate<Path, BasicFileAttributes> test : options.tests) {
+                if (!test.test(path, attrs)) return;
+            }
+            lines.add(name);
+        };
+        for (String name : options.paths) {
+            new TreeWalker("find", options.maxDepth, visitor).walk(CLI.existing(name), name, out);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.PatternSyntaxException;
+
+// Expands wildcard arguments (*, ?, [...] and ** for any number of directories).
+// A pattern is compiled once into one matcher per path segment and cached by its
+// text. Expansion walks only the levels the pattern has: literal segments are
+// looked up without listing their directory, a pattern segment lists one
+// directory, and only ** descends further. Within a directory matches are sorted by
+// name. Names starting with '.' only match a segment that starts with '.'.
+public final class Glob {
+    static final int CACHE_SIZE = 1024;
+
+    private static final Map<String, Glob> cache = new LinkedHashMap<String, Glob>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Glob> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    // One segment of a pattern, matched against a single file name
+    private static final class Segment {
+        enum Kind { LITERAL, PATTERN, ANY_DEPTH }
+
+        final Kind kind;
+        final String text;
+        final String prefix;       // "abc*": names starting with prefix
+        final String suffix;       // "*.log": names ending with suffix
+        final PathMatcher matcher; // anything else
+
+        Segment(String text) {
+            this.text = text;
+            if (text.equals("**")) {
+                kind = Kind.ANY_DEPTH;
+            } else if (isPattern(text)) {
+                kind = Kind.PATTERN;
+            } else {
+                kind = Kind.LITERAL;
+            }
+            String rest = text.length() > 1 ? text.substring(1) : "";
+            String head = text.length() > 1 ? text.substring(0, text.length() - 1) : "";
+            if (kind == Kind.PATTERN && text.startsWith("*") && !rest.isEmpty() && !isPattern(rest) && !rest.contains("{")) {
+                suffix = rest;
+                prefix = null;
+                matcher = null;
+            } else if (kind == Kind.PATTERN && text.endsWith("*") && !head.isEmpty() && !isPattern(head) && !head.contains("{")) {
+                prefix = head;
+                suffix = null;
+                matcher = null;
+            } else {
+                prefix = null;
+                suffix = null;
+                matcher = kind == Kind.PATTERN ? FileSystems.getDefault().getPathMatcher("glob:" + text) : null;
+            }
+        }
+
+        boolean matches(Path name) {
+            String s = name.toString();
+            if (s.startsWith(".") && !text.startsWith(".")) return false;
+            if (suffix != null) return s.endsWith(suffix);
+            if (prefix != null) return s.startsWith(prefix);
+            return matcher.matches(name);
+        }
+    }
+
+    private interface Action {
+        void accept(Path entry) throws Exception;
+    }
+
+    private final String base;         // the literal directory in front of the first wildcard
+    private final Segment[] segments;
+
+    private Glob(String base, Segment[] segments) {
+        this.base = base;
+        this.segments = segments;
+    }
+
+    static boolean isPattern(String word) {
+        for (int i = 0; i < word.length(); i++) {
+            char c = word.charAt(i);
+            if (c == '*' || c == '?' || c == '[') return true;
+        }
+        return false;
+    }
+
+    static Glob compile(String pattern) {
+        synchronized (cache) {
+            Glob glob = cache.get(pattern);
+            if (glob != null) return glob;
+        }
+        int wildcard = 0;
+        while (wildcard < pattern.length() && "*?[".indexOf(pattern.charAt(wildcard)) < 0) wildcard++;
+        int slash = pattern.lastIndexOf('/', wildcard);
+        String base = slash < 0 ? "" : slash == 0 ? "/" : pattern.substring(0, slash);
+        List<Segment> segments = new ArrayList<>();
+        for (String s : pattern.substring(slash + 1).split("/")) {
+            if (!s.isEmpty()) segments.add(new Segment(s));
+        }
+        Glob glob = new Glob(base, segments.toArray(new Segment[0]));
+        synchronized (cache) {
+            cache.put(pattern, glob);
+        }
+        return glob;
+    }
+
+    // Hands every path the pattern matches to sink, relative like the pattern is;
+    // returns false if nothing matched
+    boolean expand(Pipeline.LineSink sink) throws Exception {
+        Path directory = CLI.resolve(base);
+        if (!Files.isDirectory(directory)) return false;
+        long[] matches = new long[1];
+        walk(directory, base, 0, match -> {
+            matches[0]++;
+            sink.write(match);
+        });
+        return matches[0] > 0;
+    }
+
+    private void walk(Path directory, String text, int index, Pipeline.LineSink sink) throws Exception {
+        Segment segment = segments[index];
+        boolean last = index == segments.length - 1;
+        switch (segment.kind) {
+            case LITERAL: {
+                Path child = directory.resolve(segment.text);
+                if (last ? Files.exists(child) : Files.isDirectory(child)) {
+                    if (last) sink.write(join(text, segment.text));
+                    else walk(child, join(text, segment.text), index + 1, sink);
+                }
+                break;
+            }
+            case PATTERN:
+                list(directory, segment, !last, entry -> {
+                    String name = entry.getFileName().toString();
+                    if (last) sink.write(join(text, name));
+                    else walk(entry, join(text, name), index + 1, sink);
+                });
+                break;
+            case ANY_DEPTH:
+                if (!last) walk(directory, text, index + 1, sink); // ** may stand for no directory at all
+                list(directory, segment, false, entry -> {
+                    String name = entry.getFileName().toString();
+                    if (last) sink.write(join(text, name));
+                    if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                        walk(entry, join(text, name), index, sink);
+                    }
+                });
+                break;
+        }
+    }
+
+    // Calls action for the entries of directory that segment matches (all of them but
+    // hidden ones for **), in name order
+    private static void list(Path directory, Segment segment, boolean directoriesOnly, Action action) throws Exception {
+        DirectoryStream<Path> entries;
+        try {
+            entries = Files.newDirectoryStream(directory);
+        } catch (IOException e) {
+            return; // unreadable directories simply match nothing
+        }
+        List<Path> matches = new ArrayList<>();
+        try (entries) {
+            for (Path entry : entries) {
+                Path name = entry.getFileName();
+                if (segment.kind == Segment.Kind.ANY_DEPTH ? name.toString().startsWith(".") : !segment.matches(name)) continue;
+                if (directoriesOnly && !Files.isDirectory(entry)) continue;
+                matches.add(entry);
+            }
+        }
+        matches.sort(null);
+        for (Path p : matches) action.accept(p);
+    }
+
+    private static String join(String directory, String name) {
+        if (directory.isEmpty()) return name;
+        return directory.endsWith("/") ? directory + name : directory + "/" + name;
+    }
+
+    // Runs a step whose arguments have wildcards. Every pattern is expanded before
+    // the command runs, and it runs once with all the matches: a command that
+    // changes files (mv **/*.log archive) must not change the tree while it is
+    // being walked, and one that sums its arguments up (wc *.txt) must see all of
+    // them. A pattern without matches is passed as is.
+    static void run(Plan.Step step, Pipeline.Pipe in, Pipeline.Pipe out) throws Exception {
+        String[] args = step.args;
+        List<String> expanded = new ArrayList<>(args.length);
+        for (int i = 0; i < args.length; i++) {
+            if (!step.globs[i] || !expand(args[i], expanded::add)) {
+                expanded.add(args[i]);
+            }
+        }
+        Metrics.run(new Plan.Step(step.command, expanded.toArray(new String[0]), null), in, out);
+    }
+
+    private static boolean expand(String pattern, Pipeline.LineSink sink) throws Exception {
+        Glob glob;
+        try {
+            glob = compile(pattern);
+        } catch (PatternSyntaxException e) {
+            return false; // like an unmatched "[", the word is used as it is
+        }
+        return glob.expand(sink);
+    }
+}
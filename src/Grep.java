@@ -0,0 +1,325 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+// Searches lines for a fixed string or a regular expression. Piped input is
+// filtered a line at a time. Large files are memory-mapped and split into chunks
+// on line boundaries that are scanned in parallel; matches are written in file
+// order as each chunk finishes. No more chunks are scanned ahead than there are
+// threads, so the matches held in memory stay a few chunks' worth. A case-sensitive literal is searched for in the
+// mapped bytes with Boyer-Moore-Horspool, so only matching lines are decoded.
+public class Grep {
+    // Files at least this big are mapped and searched in parallel; 0 disables it
+    static long parallelThreshold = Long.getLong("cli.grep.parallel", 1024 * 1024);
+    static int parallelism = Integer.getInteger("cli.grep.threads", Runtime.getRuntime().availableProcessors());
+    static final int MAX_CHUNK = 4 * 1024 * 1024;
+    private static ForkJoinPool pool;
+
+    private static synchronized ForkJoinPool pool() {
+        if (pool == null || pool.getParallelism() != Math.max(1, parallelism)) {
+            pool = new ForkJoinPool(Math.max(1, parallelism));
+        }
+        return pool;
+    }
+
+    // Options of the grep command: -i, -v, -c, -n, -F, then the pattern and a file
+    static class Options {
+        boolean ignoreCase;
+        boolean invert;
+        boolean count;
+        boolean lineNumbers;
+        boolean fixed;       // the pattern is a plain string, not a regex
+        String pattern;
+        String file;         // input file instead of the previous stage
+
+        static Options parse(String[] args, int from) {
+            Options o = new Options();
+            for (int i = from; i < args.length; i++) {
+                String a = args[i];
+                if (o.pattern == null && a.startsWith("-") && a.length() > 1) {
+                    for (char c : a.substring(1).toCharArray()) {
+                        if (c == 'i') o.ignoreCase = true;
+                        else if (c == 'v') o.invert = true;
+                        else if (c == 'c') o.count = true;
+                        else if (c == 'n') o.lineNumbers = true;
+                        else if (c == 'F') o.fixed = true;
+                        else throw new IllegalArgumentException("grep: invalid option -- '" + c + "'");
+                    }
+                } else if (o.pattern == null) {
+                    o.pattern = a;
+                } else {
+                    o.file = a;
+                }
+            }
+            if (o.pattern == null) {
+                throw new IllegalArgumentException("usage: grep [-ivcnF] <pattern> [file]");
+            }
+            return o;
+        }
+    }
+
+    // Matched lines of one chunk, with their line numbers within the chunk
+    private static class Chunk {
+        final List<String> lines = new ArrayList<>();
+        long[] numbers = new long[16];
+        long matches;
+        long lineCount;
+
+        void add(String line, long number) {
+            if (lines.size() == numbers.length) numbers = Arrays.copyOf(numbers, numbers.length * 2);
+            numbers[lines.size()] = number;
+            lines.add(line);
+        }
+    }
+
+    private final Options options;
+    private final Pattern regex;     // null when the pattern is matched as a string
+    private final String literal;
+    private final byte[] needle;     // the literal in the file's charset, null if bytes can't be searched
+    private final int[] shift;       // Horspool bad character shifts of needle
+    private final Charset charset = Charset.defaultCharset();
+
+    Grep(Options options) {
+        this.options = options;
+        boolean plain = options.fixed || !hasMetacharacters(options.pattern);
+        if (plain && !options.ignoreCase) {
+            regex = null;
+            literal = options.pattern;
+        } else {
+            int flags = (plain ? Pattern.LITERAL : 0)
+                    | (options.ignoreCase ? Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE : 0);
+            regex = Pattern.compile(options.pattern, flags);
+            literal = null;
+        }
+        if (literal != null && !literal.isEmpty() && asciiCompatible(charset)) {
+            needle = literal.getBytes(charset);
+            shift = new int[256];
+            Arrays.fill(shift, needle.length);
+            for (int i = 0; i < needle.length - 1; i++) {
+                shift[needle[i] & 0xff] = needle.length - 1 - i;
+            }
+        } else {
+            needle = null;
+            shift = null;
+        }
+    }
+
+    private static boolean hasMetacharacters(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            if ("\\^$.|?*+()[]{}".indexOf(pattern.charAt(i)) >= 0) return true;
+        }
+        return false;
+    }
+
+    // Charsets where '\n' and ASCII bytes always stand for themselves
+    private static boolean asciiCompatible(Charset charset) {
+        return charset.equals(StandardCharsets.UTF_8) || charset.equals(StandardCharsets.ISO_8859_1)
+                || charset.equals(StandardCharsets.US_ASCII);
+    }
+
+    boolean matches(String line) {
+        boolean found = regex != null ? regex.matcher(line).find() : line.contains(literal);
+        return found != options.invert;
+    }
+
+    // Filters the lines of the previous stage
+    void filter(Pipeline.Pipe in, Pipeline.LineSink out) throws Exception {
+        long number = 0;
+        long count = 0;
+        String line;
+        while ((line = in.read()) != null) {
+            number++;
+            if (matches(line)) {
+                count++;
+                if (!options.count) out.write(options.lineNumbers ? number + ":" + line : line);
+            }
+        }
+        if (options.count) out.write(String.valueOf(count));
+    }
+
+    // Searches a file, mapping it when it is large enough to split
+    void search(Path file, Pipeline.LineSink out) throws Exception {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            Metrics.touched(1);
+            Metrics.read(size);
+            if (parallelThreshold > 0 && size >= parallelThreshold && asciiCompatible(charset)) {
+                searchMapped(channel, size, out);
+                return;
+            }
+        }
+        long number = 0;
+        long count = 0;
+        try (BufferedReader reader = new BufferedReader(new FileReader(file.toFile()))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                number++;
+                if (matches(line)) {
+                    count++;
+                    if (!options.count) out.write(options.lineNumbers ? number + ":" + line : line);
+                }
+            }
+        }
+        if (options.count) out.write(String.valueOf(count));
+    }
+
+    private void searchMapped(FileChannel channel, long size, Pipeline.LineSink out) throws Exception {
+        int chunks = Math.max(1, parallelism) * 4;
+        long chunkSize = Math.min(MAX_CHUNK, Math.max(64 * 1024, size / chunks + 1));
+        int window = Math.max(1, parallelism);
+        Deque<Future<Chunk>> results = new ArrayDeque<>();
+        ForkJoinPool pool = pool();
+        try {
+            long start = 0;
+            long lines = 0;
+            long count = 0;
+            while (start < size || !results.isEmpty()) {
+                // Keep every thread busy, but wait for the oldest chunk before mapping more
+                while (start < size && results.size() < window) {
+                    long end = lineEnd(channel, Math.min(size, start + chunkSize), size);
+                    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+                    results.add(pool.submit(() -> scan(buffer)));
+                    start = end;
+                }
+                Chunk chunk = results.removeFirst().get();
+                count += chunk.matches;
+                if (!options.count) {
+                    for (int i = 0; i < chunk.lines.size(); i++) {
+                        String line = chunk.lines.get(i);
+                        out.write(options.lineNumbers ? (lines + chunk.numbers[i]) + ":" + line : line);
+                    }
+                }
+                lines += chunk.lineCount;
+            }
+            if (options.count) out.write(String.valueOf(count));
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            throw e;
+        } finally {
+            // Don't leave chunks running if the reader went away
+            for (Future<Chunk> result : results) result.cancel(false);
+        }
+    }
+
+    // The position just after the first '\n' at or after from, or size
+    private static long lineEnd(FileChannel channel, long from, long size) throws IOException {
+        if (from >= size) return size;
+        ByteBuffer b = ByteBuffer.allocate(8192);
+        long position = from - 1;
+        while (position < size) {
+            b.clear();
+            int n = channel.read(b, position);
+            if (n <= 0) break;
+            for (int i = 0; i < n; i++) {
+                if (b.get(i) == '\n') return position + i + 1;
+            }
+            position += n;
+        }
+        return size;
+    }
+
+    // Scans one chunk of whole lines
+    private Chunk scan(MappedByteBuffer buffer) {
+        Chunk chunk = new Chunk();
+        int limit = buffer.limit();
+        if (needle != null && !options.invert) {
+            // Jump from match to match; lines in between are only counted
+            int position = 0;
+            long number = 0;
+            int hit;
+            while (position < limit && (hit = indexOf(buffer, position, limit)) >= 0) {
+                int lineStart = hit;
+                while (lineStart > position && buffer.get(lineStart - 1) != '\n') lineStart--;
+                if (options.lineNumbers) number += newlines(buffer, position, lineStart);
+                int lineEnd = next(buffer, hit + needle.length, limit);
+                number++;
+                chunk.matches++;
+                if (!options.count) chunk.add(decode(buffer, lineStart, lineEnd), number);
+                position = lineEnd + 1;
+            }
+            if (options.lineNumbers && position < limit) {
+                number += newlines(buffer, position, limit);
+                if (buffer.get(limit - 1) != '\n') number++;
+            }
+            chunk.lineCount = number;
+            return chunk;
+        }
+        int position = 0;
+        long number = 0;
+        while (position < limit) {
+            int lineEnd = next(buffer, position, limit);
+            number++;
+            boolean found = needle != null
+                    ? indexOf(buffer, position, lineEnd) >= 0
+                    : matchesText(decode(buffer, position, lineEnd));
+            if (found != options.invert) {
+                chunk.matches++;
+                if (!options.count) chunk.add(decode(buffer, position, lineEnd), number);
+            }
+            position = lineEnd + 1;
+        }
+        chunk.lineCount = number;
+        return chunk;
+    }
+
+    private boolean matchesText(String line) {
+        return regex != null ? regex.matcher(line).find() : line.contains(literal);
+    }
+
+    // Boyer-Moore-Horspool search for needle in [from, to)
+    private int indexOf(MappedByteBuffer buffer, int from, int to) {
+        int last = needle.length - 1;
+        byte tail = needle[last];
+        int i = from;
+        while (i + last < to) {
+            byte b = buffer.get(i + last);
+            if (b == tail) {
+                int j = last - 1;
+                while (j >= 0 && buffer.get(i + j) == needle[j]) j--;
+                if (j < 0) return i;
+            }
+            i += shift[b & 0xff];
+        }
+        return -1;
+    }
+
+    // Position of the next '\n' at or after from, or to
+    private static int next(MappedByteBuffer buffer, int from, int to) {
+        int i = from;
+        while (i < to && buffer.get(i) != '\n') i++;
+        return i;
+    }
+
+    private static long newlines(MappedByteBuffer buffer, int from, int to) {
+        long n = 0;
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == '\n') n++;
+        }
+        return n;
+    }
+
+    // A line without its '\n' or "\r\n"
+    private String decode(MappedByteBuffer buffer, int from, int to) {
+        if (to > from && buffer.get(to - 1) == '\r') to--;
+        byte[] bytes = new byte[to - from];
+        buffer.get(from, bytes);
+        return new String(bytes, charset);
+    }
+}
@@ -0,0 +1,238 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.FileSystems;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+// head and tail. Neither reads more of a file than it shows: head stops after n
+// lines, and tail reads backwards from the end in fixed blocks until it has seen
+// n line breaks, so both cost the same on any file size. tail -f then follows
+// the file, woken by a WatchService and reading only what was appended since its
+// last position. Without a file both work on the previous stage's output.
+public class HeadTail {
+    static int blockSize = Integer.getInteger("cli.tail.block", 8192);          // bytes read per step backwards
+    static long pollMillis = Long.getLong("cli.tail.poll", 200);                 // longest wait between checks in -f
+
+    // Options of head and tail: -n <lines> (or -<lines>), -f for tail, then a file
+    static class Options {
+        int lines = 10;
+        boolean follow;
+        String file;         // input file instead of the previous stage
+
+        static Options parse(String[] args, int from, boolean tail) {
+            String command = args[0];
+            Options o = new Options();
+            for (int i = from; i < args.length; i++) {
+                String a = args[i];
+                if (a.equals("-n")) {
+                    if (++i == args.length) throw new IllegalArgumentException(command + ": option requires an argument -- 'n'");
+                    o.lines = count(command, args[i]);
+                } else if (a.startsWith("-n")) {
+                    o.lines = count(command, a.substring(2));
+                } else if (tail && a.equals("-f")) {
+                    o.follow = true;
+                } else if (a.length() > 1 && a.startsWith("-") && Character.isDigit(a.charAt(1))) {
+                    o.lines = count(command, a.substring(1));
+                } else if (a.startsWith("-") && a.length() > 1) {
+                    throw new IllegalArgumentException(command + ": invalid option -- '" + a.substring(1) + "'");
+                } else {
+                    o.file = a;
+                }
+            }
+            if (o.follow && o.file == null) {
+                throw new IllegalArgumentException("usage: tail -f [-n lines] <file>");
+            }
+            return o;
+        }
+
+        private static int count(String command, String value) {
+            try {
+                int n = Integer.parseInt(value);
+                if (n >= 0) return n;
+            } catch (NumberFormatException e) {
+                // reported below
+            }
+            throw new IllegalArgumentException(command + ": invalid number of lines: '" + value + "'");
+        }
+    }
+
+    // Writes the first n lines of file and stops reading there
+    static void head(Path file, int n, Pipeline.LineSink out) throws Exception {
+        Metrics.touched(1);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+             BufferedReader reader = new BufferedReader(Channels.newReader(channel, Charset.defaultCharset()))) {
+            String line;
+            for (int i = 0; i < n && (line = reader.readLine()) != null; i++) {
+                out.write(line);
+            }
+            Metrics.read(channel.position());
+        }
+    }
+
+    // Passes on the first n lines, then tells the stage before it to stop
+    static void head(Pipeline.Pipe in, int n, Pipeline.LineSink out) throws Exception {
+        String line;
+        for (int i = 0; i < n && (line = in.read()) != null; i++) {
+            out.write(line);
+        }
+        in.abandon();
+    }
+
+    // Writes the last n lines of file
+    static void tail(Path file, int n, Pipeline.LineSink out) throws Exception {
+        LineDecoder lines = new LineDecoder();
+        tail(file, n, lines, out);
+        lines.finish(out);
+    }
+
+    // Decodes the last n lines of file and returns the offset it stopped at; a last
+    // line without a line break stays in lines
+    private static long tail(Path file, int n, LineDecoder lines, Pipeline.LineSink out) throws Exception {
+        Metrics.touched(1);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long end = channel.size();
+            long position = startOfLastLines(channel, end, n);
+            Metrics.read(end - position);
+            ByteBuffer block = ByteBuffer.allocate(blockSize);
+            while (position < end) {
+                block.clear().limit((int) Math.min(blockSize, end - position));
+                int read = channel.read(block, position);
+                if (read <= 0) break;
+                position += read;
+                block.flip();
+                lines.decode(block, out);
+            }
+            return position;
+        }
+    }
+
+    // Offset where the last n lines before end begin. Blocks are read from the end
+    // back; a line break right at the end only ends the last line.
+    static long startOfLastLines(FileChannel channel, long end, int n) throws IOException {
+        if (n == 0) return end;
+        ByteBuffer block = ByteBuffer.allocate(blockSize);
+        long position = end;
+        long skip = end - 1; // offset of a final line break, which does not start a line
+        int breaks = 0;
+        while (position > 0) {
+            int size = (int) Math.min(blockSize, position);
+            position -= size;
+            block.clear().limit(size);
+            while (block.hasRemaining()) {
+                if (channel.read(block, position + block.position()) < 0) break;
+            }
+            for (int i = size - 1; i >= 0; i--) {
+                if (block.get(i) == '\n' && position + i != skip && ++breaks == n) {
+                    return position + i + 1;
+                }
+            }
+        }
+        return 0;
+    }
+
+    // Keeps the last n lines of the previous stage in a ring and writes them at its end
+    static void tail(Pipeline.Pipe in, int n, Pipeline.LineSink out) throws Exception {
+        String[] ring = new String[n];
+        long count = 0;
+        String line;
+        while ((line = in.read()) != null) {
+            if (n > 0) ring[(int) (count % n)] = line;
+            count++;
+        }
+        long first = Math.max(0, count - n);
+        for (long i = first; i < count; i++) {
+            out.write(ring[(int) (i % n)]);
+        }
+    }
+
+    // Writes the last n lines of file, then every line appended to it, until the next
+    // stage stops reading or the thread is interrupted (kill of a job). A file that
+    // shrinks was truncated and is followed again from its start.
+    static void follow(Path file, int n, Pipeline.Pipe out) throws Exception {
+        Path name = file.getFileName();
+        LineDecoder lines = new LineDecoder();
+        ByteBuffer block = ByteBuffer.allocate(blockSize);
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            // Watch first, so nothing appended while the tail is read goes unnoticed
+            file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE);
+            long position = tail(file, n, lines, out);
+            out.flush();
+            while (!out.abandoned()) {
+                // Sleep until the directory changes; the timeout also notices a
+                // reader that went away and changes the watcher missed
+                WatchKey key = watcher.poll(pollMillis, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    boolean ours = false;
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        ours |= name.equals(event.context());
+                    }
+                    key.reset();
+                    if (!ours) continue;
+                }
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    long size = channel.size();
+                    if (size < position) {
+                        position = 0;
+                        lines.reset();
+                    }
+                    while (position < size) {
+                        block.clear();
+                        int read = channel.read(block, position);
+                        if (read <= 0) break;
+                        position += read;
+                        Metrics.read(read);
+                        block.flip();
+                        lines.decode(block, out);
+                    }
+                    out.flush();
+                } catch (NoSuchFileException e) {
+                    // moved away and not created again yet
+                }
+            }
+        }
+    }
+
+    // Splits bytes into lines, keeping a line that has not ended yet for later
+    private static final class LineDecoder {
+        private byte[] partial = new byte[256];
+        private int length;
+
+        void decode(ByteBuffer bytes, Pipeline.LineSink out) throws Exception {
+            while (bytes.hasRemaining()) {
+                byte b = bytes.get();
+                if (b == '\n') {
+                    int end = length > 0 && partial[length - 1] == '\r' ? length - 1 : length;
+                    out.write(new String(partial, 0, end, Charset.defaultCharset()));
+                    length = 0;
+                } else {
+                    if (length == partial.length) {
+                        byte[] bigger = new byte[length * 2];
+                        System.arraycopy(partial, 0, bigger, 0, length);
+                        partial = bigger;
+                    }
+                    partial[length++] = b;
+                }
+            }
+        }
+
+        // Writes a last line that has no line break
+        void finish(Pipeline.LineSink out) throws Exception {
+            if (length > 0) out.write(new String(partial, 0, length, Charset.defaultCharset()));
+            length = 0;
+        }
+
+        void reset() {
+            length = 0;
+        }
+    }
+}
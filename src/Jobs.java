@@ -0,0 +1,189 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// The table of background jobs a session started with "cmd &". Each job runs its
+// pipeline on its own daemon thread, in the session that started it. Output is kept
+// with the job, away from the foreground PrintManager, until fg shows it; only the
+// last outputLines lines are kept, so a job that never ends (tail -f, find /)
+// cannot fill the heap. A job with a redirect writes its file directly. Job
+// numbers start again at 1 once the table is empty.
+public class Jobs {
+    static int outputLines = Integer.getInteger("cli.jobs.output", 10_000);
+
+    enum State {
+        RUNNING("Running"), DONE("Done"), FAILED("Failed"), CANCELLED("Cancelled");
+
+        final String label;
+
+        State(String label) {
+            this.label = label;
+        }
+    }
+
+    class Job {
+        final int id;
+        final Plan plan;
+        private final ArrayDeque<String> output = new ArrayDeque<>(); // the last outputLines lines
+        private long dropped; // lines that fell off the front of output
+        private final Thread thread;
+        private volatile State state = State.RUNNING;
+        private volatile Exception failure;
+        private volatile boolean cancelled;
+
+        Job(int id, Plan plan) {
+            this.id = id;
+            this.plan = plan;
+            this.thread = new Thread(() -> {
+                try {
+                    session.call(() -> {
+                        run();
+                        return null;
+                    });
+                } catch (Exception e) {
+                    // run() records its own failures
+                }
+            }, "job-" + id);
+            this.thread.setDaemon(true);
+        }
+
+        private void run() {
+            try {
+                if (plan.redirect != null) {
+                    FileSink sink = FileSink.open(CLI.makeAbsolute(plan.redirect), plan.append);
+                    try (Writer writer = new FileSink.Output(sink)) {
+                        Metrics.pipeline(plan, () -> plan.pipeline().run(new Pipeline.LineSink() {
+                            @Override
+                            public void write(String line) throws IOException {
+                                if (cancelled) throw new Pipeline.Abandoned();
+                                writer.write(line);
+                                writer.write('\n');
+                            }
+
+                            @Override
+                            public long transfer(File file) throws IOException {
+                                if (cancelled) throw new Pipeline.Abandoned();
+                                writer.flush();
+                                return CLI.transfer(file, sink.channel());
+                            }
+                        }));
+                    }
+                } else {
+                    Metrics.pipeline(plan, () -> plan.pipeline().run(this::capture));
+                }
+                state = cancelled ? State.CANCELLED : State.DONE;
+            } catch (Exception e) {
+                failure = e;
+                state = cancelled ? State.CANCELLED : State.FAILED;
+            }
+        }
+
+        private void capture(String line) {
+            if (cancelled) throw new Pipeline.Abandoned();
+            synchronized (output) {
+                if (output.size() >= Math.max(1, outputLines)) {
+                    output.removeFirst();
+                    dropped++;
+                }
+                output.addLast(line);
+            }
+        }
+
+        // Stops the job: its next line ends the pipeline and blocked reads are interrupted
+        void cancel() {
+            cancelled = true;
+            thread.interrupt();
+        }
+
+        void await() throws InterruptedException {
+            thread.join();
+        }
+
+        State state() {
+            return state;
+        }
+
+        Exception failure() {
+            return failure;
+        }
+
+        List<String> output() {
+            synchronized (output) {
+                return new ArrayList<>(output);
+            }
+        }
+
+        // Lines written before the ones output() still has
+        long dropped() {
+            synchronized (output) {
+                return dropped;
+            }
+        }
+
+        // The line shown by jobs and wait, like "[1] Running  cat big.log"
+        String status() {
+            State s = state;
+            String label = s != State.FAILED ? s.label
+                    : s.label + ": " + (failure.getMessage() != null ? failure.getMessage() : failure.toString());
+            return "[" + id + "] " + label + "  " + plan;
+        }
+    }
+
+    private final Session session;
+    private final Map<Integer, Job> table = new LinkedHashMap<>();
+
+    Jobs(Session session) {
+        this.session = session;
+    }
+
+    // Adds the plan to the table and starts it
+    Job start(Plan plan) {
+        Job job;
+        synchronized (table) {
+            int id = 1;
+            for (int used : table.keySet()) id = Math.max(id, used + 1);
+            job = new Job(id, plan);
+            table.put(id, job);
+        }
+        job.thread.start();
+        return job;
+    }
+
+    List<Job> list() {
+        synchronized (table) {
+            return new ArrayList<>(table.values());
+        }
+    }
+
+    // The job named by "%n" or "n", or the most recent one when spec is null
+    Job get(String spec) {
+        synchronized (table) {
+            if (spec == null) {
+                Job last = null;
+                for (Job job : table.values()) last = job;
+                if (last == null) throw new IllegalArgumentException("No current job");
+                return last;
+            }
+            String number = spec.startsWith("%") ? spec.substring(1) : spec;
+            Job job = null;
+            try {
+                job = table.get(Integer.parseInt(number));
+            } catch (NumberFormatException e) {
+                // reported below
+            }
+            if (job == null) throw new IllegalArgumentException("No such job: " + spec);
+            return job;
+        }
+    }
+
+    void remove(Job job) {
+        synchronized (table) {
+            table.remove(job.id, job);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// A set of lines for distinct and sort -u that holds tens of millions of them
+// in a modest heap. The text of every line is stored once, as UTF-8, in direct
+// buffers outside the heap. The table itself is a single long[] with open
+// addressing and linear probing: each slot packs a line's 32-bit hash with a
+// 32-bit reference to its bytes, so the heap cost is 8 to 16 bytes per line
+// instead of a String, its byte[] and a HashMap node (about 90 bytes plus the
+// text) in a HashSet<String>. Lookups compare hashes first and bytes only when
+// the hashes are equal. Buffers start small and double up to 4 MB, so a set of
+// a few lines costs a few kilobytes and a large one holds at most 4 MB it does
+// not use. Direct memory is limited to the size of the heap unless
+// -XX:MaxDirectMemorySize is given; a set whose text outgrows the heap needs it.
+final class LineSet {
+    static int segmentSize = Integer.getInteger("cli.distinct.segment", 64 * 1024); // bytes in the first buffer
+    private static final int ALIGN = 8;   // entries start at multiples of 8, so references reach 8x further
+    private static final int SEGMENT_BITS = 13;
+    private static final int POSITION_BITS = 32 - SEGMENT_BITS;
+    private static final int MAX_SEGMENT = ALIGN << POSITION_BITS; // 4 MB, the most a reference can address
+
+    private long[] slots = new long[1024]; // hash << 32 | reference; 0 is empty
+    private int mask = slots.length - 1;
+    private long size;
+    private final List<ByteBuffer> segments = new ArrayList<>();
+    private ByteBuffer segment; // the one being filled
+    private int segmentIndex;   // its index in segments
+    private int nextSize = Math.max(ALIGN * 2, Math.min(segmentSize, MAX_SEGMENT));
+    private byte[] scratch = new byte[256];
+
+    // Adds line; returns false if an equal line is already in the set
+    boolean add(String line) {
+        int length = encode(line);
+        int hash = hash(scratch, length);
+        int i = hash & mask;
+        long slot;
+        while ((slot = slots[i]) != 0) {
+            if ((int) (slot >>> 32) == hash && equal((int) slot, length)) return false;
+            i = (i + 1) & mask;
+        }
+        slots[i] = (long) hash << 32 | (store(length) & 0xffffffffL);
+        if (++size > slots.length * 3L / 4) grow();
+        return true;
+    }
+
+    long size() {
+        return size;
+    }
+
+    // Heap held by the table, and memory outside the heap held by the text
+    long tableBytes() {
+        return slots.length * 8L;
+    }
+
+    long textBytes() {
+        long bytes = 0;
+        for (ByteBuffer b : segments) bytes += b.capacity();
+        return bytes;
+    }
+
+    // Encodes line as UTF-8 into scratch and returns its length; ASCII without a copy through a String
+    private int encode(String line) {
+        int n = line.length();
+        if (scratch.length < n) scratch = new byte[Math.max(n, scratch.length * 2)];
+        for (int i = 0; i < n; i++) {
+            char c = line.charAt(i);
+            if (c >= 0x80) {
+                byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+                if (scratch.length < bytes.length) scratch = new byte[bytes.length];
+                System.arraycopy(bytes, 0, scratch, 0, bytes.length);
+                return bytes.length;
+            }
+            scratch[i] = (byte) c;
+        }
+        return n;
+    }
+
+    // 32-bit hash of bytes: eight bytes at a time, finished with a murmur mix
+    private static int hash(byte[] bytes, int length) {
+        long h = 0x9E3779B97F4A7C15L ^ length;
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            long k = (bytes[i] & 0xffL) | (bytes[i + 1] & 0xffL) << 8 | (bytes[i + 2] & 0xffL) << 16 | (bytes[i + 3] & 0xffL) << 24
+                    | (bytes[i + 4] & 0xffL) << 32 | (bytes[i + 5] & 0xffL) << 40 | (bytes[i + 6] & 0xffL) << 48 | (bytes[i + 7] & 0xffL) << 56;
+            h = (h ^ k * 0xC2B2AE3D27D4EB4FL) * 0x9E3779B97F4A7C15L;
+        }
+        for (; i < length; i++) {
+            h = (h ^ (bytes[i] & 0xff)) * 0x100000001B3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    private boolean equal(int reference, int length) {
+        ByteBuffer buffer = segments.get(reference >>> POSITION_BITS);
+        int position = (reference & ((1 << POSITION_BITS) - 1)) * ALIGN;
+        if (buffer.getInt(position) != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(position + 4 + i) != scratch[i]) return false;
+        }
+        return true;
+    }
+
+    // Appends scratch[0, length) with its length and returns where it went
+    private int store(int length) {
+        int needed = (4 + length + ALIGN - 1) / ALIGN * ALIGN;
+        ByteBuffer target = segment;
+        int index = segmentIndex;
+        if (target == null || target.remaining() < needed) {
+            if (segments.size() == 1 << SEGMENT_BITS) {
+                throw new IllegalStateException("Too many distinct lines");
+            }
+            int first = segments.isEmpty() ? ALIGN : 0; // reference 0 would look like an empty slot
+            if (first + needed > nextSize) {
+                // a line too long for a segment gets one of its own; the one being filled
+                // stays current, so no later line lands past what a reference can address
+                target = ByteBuffer.allocateDirect(first + needed);
+            } else {
+                target = segment = ByteBuffer.allocateDirect(nextSize);
+                segmentIndex = segments.size();
+                nextSize = (int) Math.min((long) nextSize * 2, MAX_SEGMENT);
+            }
+            index = segments.size();
+            target.position(first);
+            segments.add(target);
+        }
+        int position = target.position();
+        target.putInt(position, length);
+        target.put(position + 4, scratch, 0, length);
+        target.position(position + needed);
+        return index << POSITION_BITS | position / ALIGN;
+    }
+
+    // Doubles the table; slots keep their hash, so no line is read again
+    private void grow() {
+        long[] old = slots;
+        slots = new long[old.length * 2];
+        mask = slots.length - 1;
+        for (long slot : old) {
+            if (slot == 0) continue;
+            int i = (int) (slot >>> 32) & mask;
+            while (slots[i] != 0) i = (i + 1) & mask;
+            slots[i] = slot;
+        }
+    }
+}
@@ -1,13 +1,32 @@
-import java.util.Scanner;
+
 import java.io.*;
 
+// Runs a script of commands: java Main [-k|--keep-going] [script]
+// Without a script file the commands are read from stdin.
+// java Main --server <socket> serves sessions on a Unix-domain socket instead.
 public class Main {
 
     public static void main(String[] args) throws IOException {
-        CLI.cd("testFolder");
-        System.out.println(CLI.pwd());
-        CLI.piping("cat pipingFile.txt | cd");
-        System.out.println(CLI.pwd());
-
+        boolean keepGoing = false;
+        String script = null;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-k") || arg.equals("--keep-going")) {
+                keepGoing = true;
+            } else if (arg.equals("--server") && i + 1 < args.length) {
+                try (Server server = new Server(java.nio.file.Paths.get(args[++i]), Session.console.workingDirectory)) {
+                    server.serve();
+                }
+                return;
+            } else {
+                script = arg;
+            }
+        }
+        Reader in = script == null ? new InputStreamReader(System.in) : new FileReader(script);
+        boolean succeeded;
+        try (BufferedReader reader = new BufferedReader(in, 64 * 1024)) {
+            succeeded = new Batch(keepGoing).run(reader);
+        }
+        System.exit(succeeded ? 0 : 1);
     }
-}
\ No newline at end of file
+}
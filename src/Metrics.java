@@ -0,0 +1,224 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Instrumentation around every command stage and pipeline: latency histograms,
+// bytes read and written, files touched and bytes allocated, shown by the stats
+// command. Every run is also a JDK Flight Recorder event. When metrics are off and
+// no recording asks for the events, a command runs without any measuring.
+public class Metrics {
+    static volatile boolean enabled = Boolean.getBoolean("cli.metrics");
+
+    @Name("cli.Command")
+    @Label("CLI Command")
+    @Category("Command Line Interpreter")
+    @Description("One command of a command line, run as a pipeline stage")
+    static class CommandEvent extends Event {
+        @Label("Command")
+        String command;
+        @Label("Arguments")
+        String arguments;
+        @Label("Bytes Read")
+        @DataAmount
+        long bytesRead;
+        @Label("Bytes Written")
+        @DataAmount
+        long bytesWritten;
+        @Label("Files Touched")
+        long filesTouched;
+        @Label("Allocated")
+        @DataAmount
+        long allocated;
+        @Label("Failed")
+        boolean failed;
+    }
+
+    @Name("cli.Pipeline")
+    @Label("CLI Pipeline")
+    @Category("Command Line Interpreter")
+    @Description("A whole command line, from start to the last stage's output")
+    static class PipelineEvent extends Event {
+        @Label("Command Line")
+        String line;
+        @Label("Stages")
+        int stages;
+        @Label("Failed")
+        boolean failed;
+    }
+
+    // Counters of the command that is running on this thread
+    private static class Sample {
+        long bytesRead;
+        long bytesWritten;
+        long filesTouched;
+    }
+
+    // Totals and a latency histogram with power-of-two microsecond buckets
+    static class CommandStats {
+        static final int BUCKETS = 40;
+
+        final LongAdder count = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final LongAdder bytesRead = new LongAdder();
+        final LongAdder bytesWritten = new LongAdder();
+        final LongAdder filesTouched = new LongAdder();
+        final LongAdder allocated = new LongAdder();
+        final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+        volatile long maxNanos;
+
+        void record(long nanos, boolean failed, Sample sample, long allocatedBytes) {
+            count.increment();
+            if (failed) failures.increment();
+            totalNanos.add(nanos);
+            bytesRead.add(sample.bytesRead);
+            bytesWritten.add(sample.bytesWritten);
+            filesTouched.add(sample.filesTouched);
+            allocated.add(allocatedBytes);
+            histogram.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos / 1000)));
+            if (nanos > maxNanos) maxNanos = nanos;
+        }
+
+        // Upper bound, in microseconds, of the bucket holding the given percentile
+        long percentileMicros(double p) {
+            long total = count.sum();
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += histogram.get(i);
+                if (seen > 0 && seen >= p / 100 * total) return i == 0 ? 1 : 1L << i;
+            }
+            return maxNanos / 1000;
+        }
+    }
+
+    private static final Map<String, CommandStats> stats = new ConcurrentHashMap<>();
+    private static final ThreadLocal<Sample> current = new ThreadLocal<>();
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // Runs one step of a plan, measuring it if metrics or its JFR event are enabled
+    static void run(Plan.Step step, Pipeline.Pipe in, Pipeline.Pipe out) throws Exception {
+        CommandEvent event = new CommandEvent();
+        if (!enabled && !event.isEnabled()) {
+            step.command.run(step.args, in, out);
+            return;
+        }
+        Sample sample = new Sample();
+        current.set(sample);
+        long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+        long writtenBefore = out.bytesWritten();
+        boolean failed = true;
+        event.begin();
+        long start = System.nanoTime();
+        try {
+            step.command.run(step.args, in, out);
+            failed = false;
+        } catch (Pipeline.Abandoned e) {
+            failed = false;
+            throw e;
+        } finally {
+            long nanos = System.nanoTime() - start;
+            event.end();
+            current.remove();
+            sample.bytesWritten += out.bytesWritten() - writtenBefore;
+            long allocated = threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+            if (enabled) {
+                stats.computeIfAbsent(step.args[0], k -> new CommandStats()).record(nanos, failed, sample, allocated);
+            }
+            if (event.shouldCommit()) {
+                event.command = step.args[0];
+                event.arguments = String.join(" ", step.args);
+                event.bytesRead = sample.bytesRead;
+                event.bytesWritten = sample.bytesWritten;
+                event.filesTouched = sample.filesTouched;
+                event.allocated = allocated;
+                event.failed = failed;
+                event.commit();
+            }
+        }
+    }
+
+    interface Body {
+        void run() throws Exception;
+    }
+
+    // Measures a whole command line under the name "piping"
+    static void pipeline(Plan plan, Body body) throws Exception {
+        PipelineEvent event = new PipelineEvent();
+        if (!enabled && !event.isEnabled()) {
+            body.run();
+            return;
+        }
+        boolean failed = true;
+        event.begin();
+        long start = System.nanoTime();
+        try {
+            body.run();
+            failed = false;
+        } finally {
+            long nanos = System.nanoTime() - start;
+            event.end();
+            if (enabled) {
+                stats.computeIfAbsent("piping", k -> new CommandStats()).record(nanos, failed, new Sample(), 0);
+            }
+            if (event.shouldCommit()) {
+                event.line = plan.toString();
+                event.stages = plan.steps.size();
+                event.failed = failed;
+                event.commit();
+            }
+        }
+    }
+
+    // Called by commands while they run; cheap no-ops when nothing is measuring
+    static void read(long bytes) {
+        Sample s = current.get();
+        if (s != null) s.bytesRead += bytes;
+    }
+
+    static void wrote(long bytes) {
+        Sample s = current.get();
+        if (s != null) s.bytesWritten += bytes;
+    }
+
+    static void touched(long files) {
+        Sample s = current.get();
+        if (s != null) s.filesTouched += files;
+    }
+
+    static void reset() {
+        stats.clear();
+    }
+
+    static CommandStats get(String command) {
+        return stats.get(command);
+    }
+
+    // The table printed by the stats command
+    static List<String> report() {
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format("%-8s %8s %6s %10s %10s %10s %10s %12s %12s %8s %12s",
+                "command", "count", "fail", "mean us", "p50 us", "p99 us", "max us", "read B", "written B", "files", "alloc B"));
+        for (Map.Entry<String, CommandStats> e : new TreeMap<>(stats).entrySet()) {
+            CommandStats s = e.getValue();
+            long count = Math.max(1, s.count.sum());
+            lines.add(String.format("%-8s %8d %6d %10d %10d %10d %10d %12d %12d %8d %12d",
+                    e.getKey(), s.count.sum(), s.failures.sum(), s.totalNanos.sum() / count / 1000,
+                    s.percentileMicros(50), s.percentileMicros(99), s.maxNanos / 1000,
+                    s.bytesRead.sum(), s.bytesWritten.sum(), s.filesTouched.sum(), s.allocated.sum()));
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,216 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// The less command. A file is memory-mapped and shown a screen at a time; only
+// the lines on screen are read and decoded. Line numbers come from an index of
+// line start offsets (a long[]) that a background thread builds from the start
+// of the file, so the first screen, the end (found by scanning back from the
+// last byte) and a search never wait for the whole index: only jumping to line n
+// waits, until line n is indexed. The heap holds the index and one screen, the
+// file itself stays in the page cache.
+public class Pager {
+    static int screenLines = Integer.getInteger("cli.less.lines", 23);
+    static final int SEGMENT = 1 << 30; // bytes per mapping
+
+    private final String name;
+    private final MappedByteBuffer[] segments;
+    private final long size;
+    private final Charset charset = Charset.defaultCharset();
+    private final Thread indexer;
+    private volatile long[] offsets = new long[1024]; // start of every indexed line
+    private volatile int indexed;                     // lines in offsets
+    private volatile boolean complete;                // every line is in offsets
+    private volatile boolean closed;
+    private long top;    // offset of the first line on screen
+    private long bottom; // offset after the last line on screen
+    private Grep search;
+    private String pattern; // of search
+
+    Pager(Path file) throws IOException {
+        name = file.getFileName().toString();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            size = channel.size();
+            segments = new MappedByteBuffer[(int) ((size + SEGMENT - 1) / SEGMENT)];
+            for (int i = 0; i < segments.length; i++) {
+                long position = (long) i * SEGMENT;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(SEGMENT, size - position));
+            }
+        }
+        indexed = size > 0 ? 1 : 0; // offsets[0] == 0
+        indexer = new Thread(this::index, "less-index");
+        indexer.setDaemon(true);
+        indexer.start();
+    }
+
+    // Runs one pager command and shows the screen it leads to: "" the next screen,
+    // "b" the previous one, "g" the start, "G" the end, a number that line,
+    // "/pattern" the next line matching pattern (as grep does), "n" the next match
+    public void command(String command, Pipeline.LineSink out) throws Exception {
+        if (command.isEmpty()) {
+            if (bottom < size && bottom > top) top = bottom;
+        } else if (command.equals("b")) {
+            back();
+        } else if (command.equals("g")) {
+            top = 0;
+        } else if (command.equals("G")) {
+            end();
+        } else if (command.startsWith("/")) {
+            Grep.Options options = new Grep.Options();
+            options.pattern = command.substring(1);
+            search = new Grep(options);
+            pattern = options.pattern;
+            if (!find(out)) return;
+        } else if (command.equals("n")) {
+            if (search == null) throw new IllegalStateException("less: no previous search");
+            if (!find(out)) return;
+        } else if (command.chars().allMatch(Character::isDigit)) {
+            goTo(Long.parseLong(command));
+        } else {
+            throw new IllegalArgumentException("less: unknown command '" + command + "'");
+        }
+        render(out);
+    }
+
+    // Shows the screen starting at top, then a status line
+    public void render(Pipeline.LineSink out) throws Exception {
+        long position = top;
+        int shown = 0;
+        while (shown < screenLines && position < size) {
+            long end = lineEnd(position);
+            out.write(decode(position, end));
+            position = Math.min(size, end + 1);
+            shown++;
+        }
+        bottom = position;
+        long first = lineNumber(top);
+        String lines = first < 0 ? "?" : shown == 0 ? Long.toString(first) : first + "-" + (first + shown - 1);
+        String total = complete ? Integer.toString(indexed) : "?";
+        String where = bottom >= size ? "(END)" : (size == 0 ? 100 : bottom * 100 / size) + "%";
+        out.write(name + " lines " + lines + "/" + total + " " + where);
+    }
+
+    // Number of lines in the file, or -1 while they are still being counted
+    public long lineCount() {
+        return complete ? indexed : -1;
+    }
+
+    public void close() {
+        closed = true;
+    }
+
+    private void back() {
+        for (int i = 0; i < screenLines && top > 0; i++) {
+            top = startOfLine(top - 1);
+        }
+    }
+
+    // The last screen, found from the end of the file without the index
+    private void end() {
+        long end = size > 0 && get(size - 1) == '\n' ? size - 1 : size; // a final '\n' only ends the last line
+        long start = end;
+        for (int i = 0; i < screenLines; i++) {
+            start = startOfLine(end);
+            if (start == 0) break;
+            end = start - 1;
+        }
+        top = start;
+    }
+
+    // Line number is 1-based; waits until the index reaches it
+    private void goTo(long number) throws InterruptedException {
+        long line = Math.max(0, number - 1);
+        synchronized (this) {
+            while (indexed <= line && !complete) wait();
+        }
+        if (line < indexed) {
+            top = offsets[(int) line];
+        } else {
+            end();
+        }
+    }
+
+    // Moves top to the next line after it that matches the search
+    private boolean find(Pipeline.LineSink out) throws Exception {
+        long position = top < size ? Math.min(size, lineEnd(top) + 1) : size;
+        while (position < size) {
+            long end = lineEnd(position);
+            if (search.matches(decode(position, end))) {
+                top = position;
+                return true;
+            }
+            position = end + 1;
+        }
+        out.write("Pattern not found: " + pattern);
+        return false;
+    }
+
+    // 1-based number of the line starting at offset, or -1 if it is not indexed yet
+    private long lineNumber(long offset) {
+        int count = indexed;
+        long[] index = offsets;
+        int i = Arrays.binarySearch(index, 0, count, offset);
+        return i >= 0 ? i + 1 : -1;
+    }
+
+    // The background indexer: records where every line starts
+    private void index() {
+        long[] index = offsets;
+        int count = indexed;
+        for (int s = 0; s < segments.length && !closed; s++) {
+            MappedByteBuffer segment = segments[s];
+            long base = (long) s * SEGMENT;
+            int limit = segment.limit();
+            for (int i = 0; i < limit; i++) {
+                if (segment.get(i) == '\n' && base + i + 1 < size) {
+                    if (count == index.length) {
+                        index = Arrays.copyOf(index, count * 2);
+                        offsets = index;
+                    }
+                    index[count++] = base + i + 1;
+                    if ((count & 4095) == 0) publish(count, false);
+                }
+            }
+            if (closed) return;
+        }
+        publish(count, true);
+    }
+
+    private synchronized void publish(int count, boolean done) {
+        indexed = count;
+        complete = done;
+        notifyAll();
+    }
+
+    private byte get(long position) {
+        return segments[(int) (position / SEGMENT)].get((int) (position % SEGMENT));
+    }
+
+    // Offset of the '\n' ending the line at from, or size
+    private long lineEnd(long from) {
+        long i = from;
+        while (i < size && get(i) != '\n') i++;
+        return i;
+    }
+
+    // Offset where the line holding position starts
+    private long startOfLine(long position) {
+        long i = position;
+        while (i > 0 && get(i - 1) != '\n') i--;
+        return i;
+    }
+
+    // A line without its '\n' or "\r\n"
+    private String decode(long from, long to) {
+        if (to > from && get(to - 1) == '\r') to--;
+        byte[] bytes = new byte[(int) Math.min(Integer.MAX_VALUE - 8, to - from)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = get(from + i);
+        }
+        return new String(bytes, charset);
+    }
+}
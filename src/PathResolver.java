@@ -0,0 +1,142 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Resolves the path arguments of commands against a session's working directory.
+// Resolved paths are absolute and normalized, and cached by argument until the
+// working directory changes. Whether a path exists and whether it is a directory
+// is cached too, but only for as long as one command runs (see command): other
+// processes may create or delete files between commands, so every command looks
+// at the disk afresh. Within a command only answers of "yes" come from the cache,
+// and a command that changes a path forgets it.
+public class PathResolver {
+    static int cacheSize = Integer.getInteger("cli.paths.cache", 4096);
+
+    enum Kind { MISSING, FILE, DIRECTORY, OTHER }
+
+    // Checks made by the command running on this thread; null outside commands
+    private static final ThreadLocal<Map<Path, Kind>> kinds = new ThreadLocal<>();
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    interface Command {
+        void run() throws Exception;
+    }
+
+    private final Session session;
+    private final Map<String, Path> resolved = lru();
+    private File directory; // working directory the resolved paths belong to
+    private Path base;
+
+    PathResolver(Session session) {
+        this.session = session;
+    }
+
+    private static <K, V> Map<K, V> lru() {
+        return new LinkedHashMap<K, V>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    // The absolute, normalized path an argument names; "" is the working directory
+    Path resolve(String argument) {
+        File workingDirectory = session.workingDirectory;
+        synchronized (resolved) {
+            if (workingDirectory != directory) {
+                // cd (or anything else) moved the session, earlier results are wrong now
+                resolved.clear();
+                directory = workingDirectory;
+                base = workingDirectory.toPath().toAbsolutePath().normalize();
+            }
+            Path path = resolved.get(argument);
+            if (path == null) {
+                path = base.resolve(argument).normalize();
+                resolved.put(argument, path);
+            }
+            return path;
+        }
+    }
+
+    // Runs a command on this thread, caching the existence checks it makes until
+    // it returns; a command run from within another shares its cache
+    static void command(Command body) throws Exception {
+        if (kinds.get() != null) {
+            body.run();
+            return;
+        }
+        kinds.set(lru());
+        try {
+            body.run();
+        } finally {
+            kinds.remove();
+        }
+    }
+
+    static boolean exists(Path path) {
+        Kind cached = cached(path);
+        return cached != null && cached != Kind.MISSING || stat(path) != Kind.MISSING;
+    }
+
+    static boolean isDirectory(Path path) {
+        return cached(path) == Kind.DIRECTORY || stat(path) == Kind.DIRECTORY;
+    }
+
+    static boolean isFile(Path path) {
+        return cached(path) == Kind.FILE || stat(path) == Kind.FILE;
+    }
+
+    private static Kind cached(Path path) {
+        Map<Path, Kind> checks = kinds.get();
+        Kind kind = checks != null ? checks.get(path) : null;
+        if (kind != null) hits.incrementAndGet();
+        else misses.incrementAndGet();
+        return kind;
+    }
+
+    // Looks at the disk, following links like File.exists, and remembers what exists
+    private static Kind stat(Path path) {
+        Kind kind;
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            kind = attrs.isDirectory() ? Kind.DIRECTORY : attrs.isRegularFile() ? Kind.FILE : Kind.OTHER;
+        } catch (IOException e) {
+            kind = Kind.MISSING;
+        }
+        Map<Path, Kind> checks = kinds.get();
+        if (checks != null) {
+            if (kind == Kind.MISSING) checks.remove(path);
+            else checks.put(path, kind);
+        }
+        return kind;
+    }
+
+    // Forgets path and everything below it; called by commands that change them
+    static void invalidate(Path path) {
+        Map<Path, Kind> checks = kinds.get();
+        if (checks == null) return;
+        checks.keySet().removeIf(p -> p.startsWith(path));
+    }
+
+    static void clear() {
+        Map<Path, Kind> checks = kinds.get();
+        if (checks != null) checks.clear();
+        hits.set(0);
+        misses.set(0);
+    }
+
+    static long hits() {
+        return hits.get();
+    }
+
+    static long misses() {
+        return misses.get();
+    }
+}
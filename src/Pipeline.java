@@ -0,0 +1,239 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Runs the stages of a piped command line concurrently, one thread per stage,
+// connected by bounded line buffers so a fast producer blocks instead of
+// filling the heap.
+public class Pipeline {
+    static final int BATCH_SIZE = 256;   // lines handed over per queue operation
+    static final int QUEUE_BATCHES = 16; // batches buffered between two stages
+
+    private static final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "pipeline-stage");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // A single step of a pipeline: reads lines from in, writes lines to out
+    interface Stage {
+        void run(Pipe in, Pipe out) throws Exception;
+    }
+
+    // Anything a stage can write lines to
+    interface LineSink {
+        void write(String line) throws Exception;
+
+        // The lines that follow are a whole screen (less). The console shows them
+        // at once rather than a page at a time; any other sink takes them as lines.
+        default void screen() {
+        }
+
+        // Sends a whole file on as it is, for a sink that writes bytes to a file, and
+        // returns the bytes sent; -1 from a sink that only takes lines
+        default long transfer(File file) throws Exception {
+            return -1;
+        }
+    }
+
+    // Single-producer, single-consumer line channel between two stages
+    static class Pipe implements LineSink {
+        private static final List<String> EOF = new ArrayList<>();
+
+        private final BlockingQueue<List<String>> queue = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+        private List<String> writeBatch = new ArrayList<>(BATCH_SIZE);
+        private List<String> readBatch;
+        private int readIndex;
+        private volatile boolean abandoned;
+        private boolean closed;
+        private boolean drained;
+        private long bytesWritten; // characters plus a newline per line, for Metrics
+
+        // Pipe that is already at end of input (used in front of the first stage)
+        static Pipe empty() {
+            Pipe p = new Pipe();
+            p.drained = true;
+            return p;
+        }
+
+        public void write(String line) throws Exception {
+            if (abandoned) throw new Abandoned();
+            bytesWritten += line.length() + 1;
+            writeBatch.add(line);
+            if (writeBatch.size() >= BATCH_SIZE) {
+                queue.put(writeBatch);
+                writeBatch = new ArrayList<>(BATCH_SIZE);
+            }
+        }
+
+        // Hands over the lines written so far without waiting for a full batch, for
+        // writers whose lines arrive slowly
+        public void flush() throws InterruptedException {
+            if (abandoned || writeBatch.isEmpty()) return;
+            queue.put(writeBatch);
+            writeBatch = new ArrayList<>(BATCH_SIZE);
+        }
+
+        public void close() throws InterruptedException {
+            if (closed) return;
+            closed = true;
+            if (abandoned) return;
+            if (!writeBatch.isEmpty()) {
+                queue.put(writeBatch);
+            }
+            queue.put(EOF);
+        }
+
+        // Returns the next line, or null once the writer has closed the pipe
+        public String read() throws InterruptedException {
+            while (!drained) {
+                if (readBatch != null && readIndex < readBatch.size()) {
+                    return readBatch.get(readIndex++);
+                }
+                readBatch = queue.take();
+                readIndex = 0;
+                if (readBatch == EOF) {
+                    drained = true;
+                }
+            }
+            return null;
+        }
+
+        // Reads whatever is left and joins it, for stages that need a single argument
+        public String readAll() throws InterruptedException {
+            StringBuilder sb = new StringBuilder();
+            String line;
+            boolean first = true;
+            while ((line = read()) != null) {
+                if (!first) sb.append('\n');
+                sb.append(line);
+                first = false;
+            }
+            return first ? null : sb.toString();
+        }
+
+        public long bytesWritten() {
+            return bytesWritten;
+        }
+
+        // Pipe that hands every line straight to sink on the writer's thread
+        static Pipe to(LineSink sink) {
+            return new Pipe() {
+                @Override
+                public void write(String line) throws Exception {
+                    super.bytesWritten += line.length() + 1;
+                    sink.write(line);
+                }
+
+                @Override
+                public void screen() {
+                    sink.screen();
+                }
+
+                @Override
+                public long transfer(File file) throws Exception {
+                    long bytes = sink.transfer(file);
+                    if (bytes > 0) super.bytesWritten += bytes;
+                    return bytes;
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+
+        // True once the reader has gone away, for writers that wait for their input
+        public boolean abandoned() {
+            return abandoned;
+        }
+
+        // Tells the writer nobody is reading any more; its next write ends the stage
+        public void abandon() {
+            abandoned = true;
+            drained = true;
+            queue.clear();
+        }
+    }
+
+    // Thrown from Pipe.write once the reader has gone away, like SIGPIPE
+    static class Abandoned extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Abandoned() {
+            super(null, null, false, false);
+        }
+    }
+
+    private final List<Stage> stages = new ArrayList<>();
+    private List<Future<?>> running = new ArrayList<>();
+
+    public Pipeline add(Stage stage) {
+        stages.add(stage);
+        return this;
+    }
+
+    // Starts every stage on its own thread, in the caller's session; the output of
+    // the last stage is returned
+    public Pipe start() {
+        return start(stages);
+    }
+
+    private Pipe start(List<Stage> stages) {
+        Pipe in = Pipe.empty();
+        Session session = Session.current();
+        List<Future<?>> running = new ArrayList<>();
+        for (Stage stage : stages) {
+            Pipe stageIn = in;
+            Pipe stageOut = new Pipe();
+            running.add(executor.submit(() -> session.call(() -> {
+                try {
+                    PathResolver.command(() -> stage.run(stageIn, stageOut));
+                } catch (Abandoned e) {
+                    // downstream stopped reading, nothing left to do
+                } finally {
+                    stageIn.abandon();
+                    stageOut.close();
+                }
+                return null;
+            })));
+            in = stageOut;
+        }
+        this.running = running;
+        return in;
+    }
+
+    // Runs the last stage on the calling thread, writing straight into sink, so a
+    // single command needs no extra thread or queue at all
+    public void run(LineSink sink) throws Exception {
+        if (stages.isEmpty()) return;
+        Pipe in = start(stages.subList(0, stages.size() - 1));
+        try {
+            PathResolver.command(() -> stages.get(stages.size() - 1).run(in, Pipe.to(sink)));
+        } catch (Abandoned e) {
+            // the sink stopped accepting lines
+        } finally {
+            in.abandon();
+        }
+        await();
+    }
+
+    // Waits for all stages and rethrows the first failure
+    public void await() throws Exception {
+        for (Future<?> f : running) {
+            try {
+                f.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception) throw (Exception) cause;
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,219 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// A command line compiled into its stages, each bound to the Command that runs
+// it, plus an optional > or >> redirect of the last stage's output. Plans are
+// immutable and cached by their source text, so a line that is run again skips
+// tokenizing and command lookup.
+public final class Plan {
+    static final int CACHE_SIZE = 1024;
+
+    private static final Map<String, Plan> cache = new LinkedHashMap<String, Plan>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Plan> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    // One command of the pipeline with its arguments
+    static final class Step {
+        final Command command;
+        final String[] args;
+        final boolean[] globs; // which args are wildcards to expand, null if none are
+
+        Step(Command command, String[] args, boolean[] globs) {
+            this.command = command;
+            this.args = args;
+            this.globs = globs;
+        }
+
+        // args are shared by every run of the plan, commands must not modify them.
+        // Wildcards are expanded each time the step runs, against the working directory.
+        Pipeline.Stage stage() {
+            if (globs != null) return (in, out) -> Glob.run(this, in, out);
+            return (in, out) -> Metrics.run(this, in, out);
+        }
+    }
+
+    // A word or an operator of a command line
+    static final class Token {
+        enum Type { WORD, PIPE, REDIRECT, APPEND, SEQUENCE, AND, BACKGROUND }
+
+        final Type type;
+        final String text;
+        final boolean glob; // a word with an unquoted *, ? or [
+
+        Token(Type type, String text) {
+            this(type, text, false);
+        }
+
+        Token(Type type, String text, boolean glob) {
+            this.type = type;
+            this.text = text;
+            this.glob = glob;
+        }
+    }
+
+    final List<Step> steps;
+    final String redirect; // file the output goes to, null for the console
+    final boolean append;  // >> rather than >
+
+    private Plan(List<Step> steps, String redirect, boolean append) {
+        this.steps = Collections.unmodifiableList(steps);
+        this.redirect = redirect;
+        this.append = append;
+    }
+
+    static Plan compile(String source, CommandRegistry registry, Command unknown) {
+        synchronized (cache) {
+            Plan plan = cache.get(source);
+            if (plan != null) return plan;
+        }
+        Plan plan = build(lex(source), registry, unknown);
+        synchronized (cache) {
+            cache.put(source, plan);
+        }
+        return plan;
+    }
+
+    // Builds a plan from the tokens of one pipeline (no ; or &&)
+    static Plan build(List<Token> tokens, CommandRegistry registry, Command unknown) {
+        List<Step> steps = new ArrayList<>();
+        List<Token> words = new ArrayList<>();
+        String redirect = null;
+        boolean append = false;
+        for (int i = 0; i < tokens.size(); i++) {
+            Token token = tokens.get(i);
+            switch (token.type) {
+                case WORD:
+                    words.add(token);
+                    break;
+                case PIPE:
+                    addStep(steps, words, registry, unknown);
+                    words = new ArrayList<>();
+                    break;
+                case REDIRECT:
+                case APPEND:
+                    if (i + 1 >= tokens.size() || tokens.get(i + 1).type != Token.Type.WORD) {
+                        throw new IllegalArgumentException("Missing file name after " + token.text);
+                    }
+                    redirect = tokens.get(++i).text;
+                    append = token.type == Token.Type.APPEND;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unexpected " + token.text + " in a pipeline");
+            }
+        }
+        addStep(steps, words, registry, unknown);
+        return new Plan(steps, redirect, append);
+    }
+
+    private static void addStep(List<Step> steps, List<Token> words, CommandRegistry registry, Command unknown) {
+        if (words.isEmpty()) return; // Skip empty commands
+        String[] args = new String[words.size()];
+        boolean[] globs = null;
+        for (int i = 0; i < args.length; i++) {
+            args[i] = words.get(i).text;
+            // The command name itself is never expanded
+            if (i > 0 && words.get(i).glob) {
+                if (globs == null) globs = new boolean[args.length];
+                globs[i] = true;
+            }
+        }
+        Command command = registry.lookup(args[0]);
+        steps.add(new Step(command != null ? command : unknown, args, globs));
+    }
+
+    // Builds a Pipeline with one stage per step
+    Pipeline pipeline() {
+        Pipeline pipeline = new Pipeline();
+        for (Step step : steps) {
+            pipeline.add(step.stage());
+        }
+        return pipeline;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Step step : steps) {
+            if (sb.length() > 0) sb.append(" | ");
+            sb.append(String.join(" ", step.args));
+        }
+        if (redirect != null) sb.append(append ? " >> " : " > ").append(redirect);
+        return sb.toString();
+    }
+
+    // Splits a command line into the words of each piped command
+    static List<List<String>> tokenize(String source) {
+        List<List<String>> commands = new ArrayList<>();
+        List<String> words = new ArrayList<>();
+        for (Token token : lex(source)) {
+            if (token.type == Token.Type.WORD) {
+                words.add(token.text);
+            } else if (!words.isEmpty()) {
+                commands.add(words);
+                words = new ArrayList<>();
+            }
+        }
+        if (!words.isEmpty()) commands.add(words);
+        return commands;
+    }
+
+    // Splits a command line into words and the operators | > >> ; && &. Words are
+    // separated by whitespace; single or double quotes keep spaces, operator and
+    // wildcard characters in a word.
+    static List<Token> lex(String source) {
+        List<Token> tokens = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        boolean inWord = false;
+        boolean glob = false;
+        char quote = 0;
+        for (int i = 0; i < source.length(); i++) {
+            char c = source.charAt(i);
+            if (quote != 0) {
+                if (c == quote) quote = 0;
+                else word.append(c);
+                continue;
+            }
+            Token operator = null;
+            if (c == '|') {
+                operator = new Token(Token.Type.PIPE, "|");
+            } else if (c == ';') {
+                operator = new Token(Token.Type.SEQUENCE, ";");
+            } else if (c == '>') {
+                boolean twice = i + 1 < source.length() && source.charAt(i + 1) == '>';
+                if (twice) i++;
+                operator = twice ? new Token(Token.Type.APPEND, ">>") : new Token(Token.Type.REDIRECT, ">");
+            } else if (c == '&') {
+                boolean twice = i + 1 < source.length() && source.charAt(i + 1) == '&';
+                if (twice) i++;
+                operator = twice ? new Token(Token.Type.AND, "&&") : new Token(Token.Type.BACKGROUND, "&");
+            }
+            if (operator != null || Character.isWhitespace(c)) {
+                if (inWord) {
+                    tokens.add(new Token(Token.Type.WORD, word.toString(), glob));
+                    word.setLength(0);
+                    inWord = false;
+                    glob = false;
+                }
+                if (operator != null) tokens.add(operator);
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+                inWord = true;
+            } else {
+                if (c == '*' || c == '?' || c == '[') glob = true;
+                word.append(c);
+                inWord = true;
+            }
+        }
+        if (quote != 0) {
+            throw new IllegalArgumentException("Unterminated quote in: " + source);
+        }
+        if (inWord) tokens.add(new Token(Token.Type.WORD, word.toString(), glob));
+        return tokens;
+    }
+}
@@ -0,0 +1,68 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// A line of a script: pipelines separated by ; (always run the next one), &&
+// (run the next one only if this one succeeded) or & (run this one as a background
+// job and go on). Compiled lines are cached by their text like plans are.
+public final class Script {
+    static final int CACHE_SIZE = 1024;
+
+    private static final Map<String, Script> cache = new LinkedHashMap<String, Script>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Script> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    final List<Plan> plans;
+    final List<Boolean> onlyIfSucceeded; // plans.get(i) runs only if plans.get(i - 1) succeeded
+    final List<Boolean> background;      // plans.get(i) was followed by &
+
+    private Script(List<Plan> plans, List<Boolean> onlyIfSucceeded, List<Boolean> background) {
+        this.plans = Collections.unmodifiableList(plans);
+        this.onlyIfSucceeded = Collections.unmodifiableList(onlyIfSucceeded);
+        this.background = Collections.unmodifiableList(background);
+    }
+
+    static Script compile(String line, CommandRegistry registry, Command unknown) {
+        synchronized (cache) {
+            Script script = cache.get(line);
+            if (script != null) return script;
+        }
+        List<Plan> plans = new ArrayList<>();
+        List<Boolean> onlyIfSucceeded = new ArrayList<>();
+        List<Boolean> background = new ArrayList<>();
+        List<Plan.Token> pipeline = new ArrayList<>();
+        boolean and = false;
+        for (Plan.Token token : Plan.lex(line)) {
+            if (token.type == Plan.Token.Type.SEQUENCE || token.type == Plan.Token.Type.AND
+                    || token.type == Plan.Token.Type.BACKGROUND) {
+                if (pipeline.isEmpty()) {
+                    throw new IllegalArgumentException("Missing command before " + token.text);
+                }
+                plans.add(Plan.build(pipeline, registry, unknown));
+                onlyIfSucceeded.add(and);
+                background.add(token.type == Plan.Token.Type.BACKGROUND);
+                pipeline = new ArrayList<>();
+                and = token.type == Plan.Token.Type.AND;
+            } else {
+                pipeline.add(token);
+            }
+        }
+        if (!pipeline.isEmpty()) {
+            plans.add(Plan.build(pipeline, registry, unknown));
+            onlyIfSucceeded.add(and);
+            background.add(false);
+        } else if (and) {
+            throw new IllegalArgumentException("Missing command after &&");
+        }
+        Script script = new Script(plans, onlyIfSucceeded, background);
+        synchronized (cache) {
+            cache.put(line, script);
+        }
+        return script;
+    }
+}
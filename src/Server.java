@@ -0,0 +1,137 @@
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.ConnectException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Hosts many sessions in one JVM over a Unix-domain socket. Every connection is a
+// session of its own, with its own working directory, output and jobs, running on
+// its own thread: the client sends command lines and gets their output back, as
+// in batch mode with --keep-going. Errors come back on the same stream. The
+// session ends when the client closes its side or sends exit.
+public class Server implements Closeable {
+    private final Path socket;
+    private final File home;
+    private final ServerSocketChannel channel;
+    private final ExecutorService sessions = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "session");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicLong accepted = new AtomicLong();
+    private volatile boolean closed;
+
+    // Listens on socket; new sessions start in home
+    public Server(Path socket, File home) throws IOException {
+        this.socket = socket;
+        this.home = home;
+        removeStale(socket);
+        channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        channel.bind(UnixDomainSocketAddress.of(socket));
+    }
+
+    // Deletes a socket left behind by a server that is gone, so it can be bound
+    // again. Anything else at the path, or a socket a server still listens on, is
+    // left alone and reported.
+    private static void removeStale(Path socket) throws IOException {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(socket, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        if (!attrs.isOther() || !isSocket(socket)) {
+            throw new FileAlreadyExistsException(socket.toString(), null, "exists and is not a socket");
+        }
+        SocketChannel probe;
+        try {
+            probe = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+        } catch (ConnectException e) {
+            Files.delete(socket); // nobody is listening
+            return;
+        }
+        probe.close();
+        throw new IOException(socket + ": another server is listening on it");
+    }
+
+    private static boolean isSocket(Path path) throws IOException {
+        try {
+            int mode = (Integer) Files.getAttribute(path, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+            return (mode & 0170000) == 0140000; // S_IFSOCK
+        } catch (UnsupportedOperationException e) {
+            return true; // no unix view; "other" is the closest we can tell
+        }
+    }
+
+    // Accepts sessions until the server is closed
+    public void serve() throws IOException {
+        while (!closed) {
+            SocketChannel client;
+            try {
+                client = channel.accept();
+            } catch (AsynchronousCloseException e) {
+                break;
+            }
+            accepted.incrementAndGet();
+            sessions.execute(() -> handle(client));
+        }
+    }
+
+    // Starts serve() on a daemon thread
+    public Server start() {
+        Thread t = new Thread(() -> {
+            try {
+                serve();
+            } catch (IOException e) {
+                if (!closed) System.err.println("server: " + Batch.message(e));
+            }
+        }, "server");
+        t.setDaemon(true);
+        t.start();
+        return this;
+    }
+
+    private void handle(SocketChannel client) {
+        try (client) {
+            PrintStream console = new PrintStream(Channels.newOutputStream(client));
+            Session session = new Session(home, new CLI.PrintManager(console, client));
+            BufferedReader commands = new BufferedReader(new InputStreamReader(Channels.newInputStream(client)));
+            session.call(() -> new Batch(true, console).run(commands));
+            for (Jobs.Job job : session.jobs.list()) {
+                job.cancel();
+            }
+            console.flush();
+        } catch (Exception e) {
+            // the client went away; nothing to report to
+        }
+    }
+
+    public long accepted() {
+        return accepted.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        channel.close();
+        sessions.shutdownNow();
+        Files.deleteIfExists(socket);
+    }
+}
@@ -0,0 +1,42 @@
+import java.io.File;
+import java.util.concurrent.Callable;
+
+// The state of one interpreter session: its working directory, its output, its
+// background jobs, the paths resolved against its directory and the file open
+// in less. Commands find their session with Session.current(), which is set on
+// the thread running the session and carried over to the pipeline stages and
+// jobs it starts. Code outside any session uses the console session.
+public class Session {
+    static final Session console = new Session(new File(System.getProperty("user.dir")), new CLI.PrintManager());
+
+    private static final ThreadLocal<Session> current = new ThreadLocal<>();
+
+    volatile File workingDirectory;
+    CLI.PrintManager printManager;
+    final Jobs jobs = new Jobs(this);
+    final PathResolver paths = new PathResolver(this);
+    volatile boolean exited; // set by exit, ends a batch early
+    Pager pager;             // file open in less
+
+    Session(File workingDirectory, CLI.PrintManager printManager) {
+        this.workingDirectory = workingDirectory;
+        this.printManager = printManager;
+    }
+
+    static Session current() {
+        Session session = current.get();
+        return session != null ? session : console;
+    }
+
+    // Runs body on the calling thread with this as the current session
+    <T> T call(Callable<T> body) throws Exception {
+        Session previous = current.get();
+        current.set(this);
+        try {
+            return body.call();
+        } finally {
+            if (previous != null) current.set(previous);
+            else current.remove();
+        }
+    }
+}
@@ -0,0 +1,201 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Copies files and directory trees. File data moves with FileChannel.transferTo,
+// so it stays in the kernel. Trees are copied on a bounded fork/join pool: every
+// subdirectory is its own task and files are copied by the task that lists them.
+// Symbolic links are copied as links, never followed. A copy made for mv keeps
+// the permissions and times of what it copies; a directory gets them once its
+// contents are in, as adding them would change its time and a read-only mode
+// would stop them.
+public class TreeCopier {
+    static int parallelism = Integer.getInteger("cli.cp.threads", Runtime.getRuntime().availableProcessors());
+    private static final boolean posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+    private static ForkJoinPool pool;
+
+    private static synchronized ForkJoinPool pool() {
+        if (pool == null || pool.getParallelism() != Math.max(1, parallelism)) {
+            pool = new ForkJoinPool(Math.max(1, parallelism));
+        }
+        return pool;
+    }
+
+    // What a copy did, as reported by cp
+    static class Summary {
+        final long files;
+        final long directories;
+        final long bytes;
+        final List<String> failures;
+        final long elapsedMillis;
+
+        Summary(long files, long directories, long bytes, List<String> failures, long elapsedMillis) {
+            this.files = files;
+            this.directories = directories;
+            this.bytes = bytes;
+            this.failures = failures;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            double seconds = Math.max(1, elapsedMillis) / 1000.0;
+            return String.format("Copied %d files and %d directories, %d bytes, %d failures in %d ms (%.1f MB/s, %.0f files/s)",
+                    files, directories, bytes, failures.size(), elapsedMillis,
+                    bytes / 1048576.0 / seconds, files / seconds);
+        }
+    }
+
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong directories = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final ConcurrentLinkedQueue<String> failures = new ConcurrentLinkedQueue<>();
+    private final boolean preserve; // keep permissions and times
+
+    private TreeCopier(boolean preserve) {
+        this.preserve = preserve;
+    }
+
+    // Copies source to target; target must not exist yet
+    public static Summary copy(Path source, Path target) {
+        return copy(source, target, false);
+    }
+
+    // Copies source to target, with the permissions and times of source when preserve is set
+    public static Summary copy(Path source, Path target, boolean preserve) {
+        return new TreeCopier(preserve).run(source, target);
+    }
+
+    private Summary run(Path source, Path target) {
+        long start = System.nanoTime();
+        try {
+            BasicFileAttributes attrs = attributes(source);
+            if (attrs.isDirectory()) {
+                pool().invoke(new CopyDirectory(source, target, attrs));
+            } else {
+                copyEntry(source, target, attrs);
+            }
+        } catch (IOException e) {
+            failures.add(source + ": " + e);
+        }
+        return new Summary(files.get(), directories.get(), bytes.get(), new ArrayList<>(failures),
+                (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private void copyEntry(Path source, Path target, BasicFileAttributes attrs) {
+        try {
+            if (attrs.isSymbolicLink()) {
+                Files.createSymbolicLink(target, Files.readSymbolicLink(source));
+                files.incrementAndGet();
+            } else {
+                bytes.addAndGet(copyFile(source, target));
+                files.incrementAndGet();
+            }
+            if (preserve) keep(target, attrs);
+        } catch (IOException e) {
+            failures.add(source + ": " + e);
+        }
+    }
+
+    // The attributes of path itself, not of what a link points to; the POSIX ones
+    // when the permissions are to be kept
+    private BasicFileAttributes attributes(Path path) throws IOException {
+        if (preserve && posix) return Files.readAttributes(path, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+    }
+
+    // Gives target the permissions and times source had; a link has no mode of its own
+    private static void keep(Path target, BasicFileAttributes attrs) throws IOException {
+        if (attrs instanceof PosixFileAttributes && !attrs.isSymbolicLink()) {
+            Files.setPosixFilePermissions(target, ((PosixFileAttributes) attrs).permissions());
+        }
+        Files.getFileAttributeView(target, BasicFileAttributeView.class, LinkOption.NOFOLLOW_LINKS)
+                .setTimes(attrs.lastModifiedTime(), attrs.lastAccessTime(), null);
+    }
+
+    // Copies one file's data with transferTo; returns the number of bytes copied
+    static long copyFile(Path source, Path target) throws IOException {
+        if (Files.exists(target) && Files.isSameFile(source, target)) {
+            throw new IOException("'" + source + "' and '" + target + "' are the same file");
+        }
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE,
+                     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+            return position;
+        }
+    }
+
+    private class CopyDirectory extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path source;
+        private final Path target;
+        private final BasicFileAttributes attrs; // of source
+
+        CopyDirectory(Path source, Path target, BasicFileAttributes attrs) {
+            this.source = source;
+            this.target = target;
+            this.attrs = attrs;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                Files.createDirectory(target);
+                directories.incrementAndGet();
+            } catch (IOException e) {
+                failures.add(target + ": " + e);
+                return;
+            }
+            List<CopyDirectory> subtrees = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(source)) {
+                for (Path entry : entries) {
+                    Path to = target.resolve(entry.getFileName());
+                    try {
+                        BasicFileAttributes attrs = attributes(entry);
+                        if (attrs.isDirectory()) {
+                            CopyDirectory task = new CopyDirectory(entry, to, attrs);
+                            task.fork();
+                            subtrees.add(task);
+                        } else {
+                            copyEntry(entry, to, attrs);
+                        }
+                    } catch (IOException e) {
+                        failures.add(entry + ": " + e);
+                    }
+                }
+            } catch (IOException e) {
+                failures.add(source + ": " + e);
+            }
+            for (CopyDirectory task : subtrees) {
+                task.join();
+            }
+            if (preserve) {
+                try {
+                    keep(target, attrs);
+                } catch (IOException e) {
+                    failures.add(target + ": " + e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Deletes a directory tree with a fork/join pool: every subdirectory is its own
+// task, files are deleted by the task that lists them, and a directory is removed
+// once all of its subtrees are done. Symbolic links are deleted, never followed.
+public class TreeDeleter {
+    static int parallelism = Integer.getInteger("cli.rmdir.threads", Runtime.getRuntime().availableProcessors());
+    private static ForkJoinPool pool;
+
+    private static synchronized ForkJoinPool pool() {
+        if (pool == null || pool.getParallelism() != Math.max(1, parallelism)) {
+            pool = new ForkJoinPool(Math.max(1, parallelism));
+        }
+        return pool;
+    }
+
+    // What a deletion did, as reported by rmdir
+    static class Summary {
+        final long files;
+        final long directories;
+        final long bytes;
+        final List<String> failures;
+        final long elapsedMillis;
+
+        Summary(long files, long directories, long bytes, List<String> failures, long elapsedMillis) {
+            this.files = files;
+            this.directories = directories;
+            this.bytes = bytes;
+            this.failures = failures;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "Deleted " + files + " files and " + directories + " directories, freed " + bytes
+                    + " bytes, " + failures.size() + " failures in " + elapsedMillis + " ms";
+        }
+    }
+
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong directories = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final ConcurrentLinkedQueue<String> failures = new ConcurrentLinkedQueue<>();
+
+    public static Summary delete(Path root) {
+        return new TreeDeleter().run(root);
+    }
+
+    private Summary run(Path root) {
+        long start = System.nanoTime();
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(root, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (attrs.isDirectory()) {
+                pool().invoke(new DeleteDirectory(root));
+            } else {
+                deleteEntry(root, attrs);
+            }
+        } catch (NoSuchFileException e) {
+            failures.add(root + ": does not exist");
+        } catch (IOException e) {
+            failures.add(root + ": " + e.getMessage());
+        }
+        return new Summary(files.get(), directories.get(), bytes.get(), new ArrayList<>(failures),
+                (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private void deleteEntry(Path path, BasicFileAttributes attrs) {
+        try {
+            Files.delete(path);
+            if (attrs.isDirectory()) {
+                directories.incrementAndGet();
+            } else {
+                files.incrementAndGet();
+                bytes.addAndGet(attrs.size());
+            }
+        } catch (IOException e) {
+            failures.add(path + ": " + e);
+        }
+    }
+
+    private class DeleteDirectory extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+
+        DeleteDirectory(Path dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        protected void compute() {
+            List<DeleteDirectory> subtrees = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    try {
+                        BasicFileAttributes attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                        if (attrs.isDirectory()) {
+                            DeleteDirectory task = new DeleteDirectory(entry);
+                            task.fork();
+                            subtrees.add(task);
+                        } else {
+                            deleteEntry(entry, attrs);
+                        }
+                    } catch (IOException e) {
+                        failures.add(entry + ": " + e);
+                    }
+                }
+            } catch (IOException e) {
+                failures.add(dir + ": " + e);
+            }
+            for (DeleteDirectory task : subtrees) {
+                task.join();
+            }
+            try {
+                deleteEntry(dir, Files.readAttributes(dir, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS));
+            } catch (IOException e) {
+                failures.add(dir + ": " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Moves files and directory trees. A move is an atomic rename whenever source and
+// target are on the same filesystem. Across filesystems the source is copied with
+// TreeCopier (transferTo, subtrees in parallel), keeping permissions and times as
+// a rename would, to a temporary name next to the target, renamed into place and
+// only then deleted, so an interrupted move never leaves a half-copied target behind. Several sources are moved concurrently.
+public class TreeMover {
+    static int parallelism = Integer.getInteger("cli.mv.threads", Runtime.getRuntime().availableProcessors());
+    static boolean atomic = true; // false always copies, as between filesystems
+    private static ForkJoinPool pool;
+
+    private static synchronized ForkJoinPool pool() {
+        if (pool == null || pool.getParallelism() != Math.max(1, parallelism)) {
+            pool = new ForkJoinPool(Math.max(1, parallelism));
+        }
+        return pool;
+    }
+
+    // What a move did, as reported by mv
+    static class Summary {
+        final long renamed;
+        final long copied;
+        final long files;       // copied across filesystems
+        final long directories; // copied across filesystems
+        final long bytes;
+        final List<String> failures;
+        final long elapsedMillis;
+
+        Summary(long renamed, long copied, long files, long directories, long bytes, List<String> failures, long elapsedMillis) {
+            this.renamed = renamed;
+            this.copied = copied;
+            this.files = files;
+            this.directories = directories;
+            this.bytes = bytes;
+            this.failures = failures;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            double seconds = Math.max(1, elapsedMillis) / 1000.0;
+            return String.format("Moved %d entries (%d renamed, %d copied: %d files and %d directories, %d bytes), %d failures in %d ms (%.1f MB/s)",
+                    renamed + copied, renamed, copied, files, directories, bytes, failures.size(), elapsedMillis,
+                    bytes / 1048576.0 / seconds);
+        }
+    }
+
+    private final AtomicLong renamed = new AtomicLong();
+    private final AtomicLong copied = new AtomicLong();
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong directories = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final ConcurrentLinkedQueue<String> failures = new ConcurrentLinkedQueue<>();
+
+    // Moves every source to its target; targets that exist are replaced. No two
+    // sources may have the same target.
+    public static Summary move(Map<Path, Path> moves) {
+        if (new HashSet<>(moves.values()).size() < moves.size()) {
+            throw new IllegalArgumentException("Two sources are moved to the same target");
+        }
+        return new TreeMover().run(moves);
+    }
+
+    private Summary run(Map<Path, Path> moves) {
+        long start = System.nanoTime();
+        if (moves.size() == 1) {
+            Map.Entry<Path, Path> move = moves.entrySet().iterator().next();
+            moveEntry(move.getKey(), move.getValue());
+        } else {
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            for (Map.Entry<Path, Path> move : moves.entrySet()) {
+                tasks.add(pool().submit(() -> moveEntry(move.getKey(), move.getValue())));
+            }
+            for (ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+        }
+        return new Summary(renamed.get(), copied.get(), files.get(), directories.get(), bytes.get(),
+                new ArrayList<>(failures), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private void moveEntry(Path source, Path target) {
+        try {
+            if (atomic) {
+                try {
+                    Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+                    renamed.incrementAndGet();
+                    return;
+                } catch (AtomicMoveNotSupportedException e) {
+                    // another filesystem, copy it over
+                }
+            }
+            copyThenDelete(source, target);
+        } catch (IOException e) {
+            failures.add(source + ": " + e);
+        }
+    }
+
+    private void copyThenDelete(Path source, Path target) throws IOException {
+        Path temporary = target.resolveSibling(".mv-" + target.getFileName() + "-" + Long.toHexString(System.nanoTime()));
+        TreeCopier.Summary copy = TreeCopier.copy(source, temporary, true);
+        if (!copy.failures.isEmpty()) {
+            failures.addAll(copy.failures);
+            TreeDeleter.delete(temporary);
+            return;
+        }
+        try {
+            Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            TreeDeleter.delete(temporary);
+            throw e;
+        }
+        copied.incrementAndGet();
+        files.addAndGet(copy.files);
+        directories.addAndGet(copy.directories);
+        bytes.addAndGet(copy.bytes);
+        TreeDeleter.Summary deleted = TreeDeleter.delete(source);
+        failures.addAll(deleted.failures);
+    }
+}
@@ -0,0 +1,198 @@
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SecureDirectoryStream;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The directory walk under du and find. Every directory is a fork/join task on a
+// pool using all cores: it lists its entries, reads their attributes relative to
+// the open directory (fstatat through SecureDirectoryStream where the platform
+// has it, so no path is looked up again), forks its subdirectories and adds up
+// the bytes below it. The lines a visitor produces are collected into batches
+// and handed to the thread that started the walk, which streams them to the
+// next stage while the walk goes on. Symbolic links are never followed.
+public class TreeWalker {
+    static int parallelism = Integer.getInteger("cli.walk.threads", Runtime.getRuntime().availableProcessors());
+    private static final List<String> END = new ArrayList<>();
+    private static ForkJoinPool pool;
+
+    private static synchronized ForkJoinPool pool() {
+        if (pool == null || pool.getParallelism() != Math.max(1, parallelism)) {
+            pool = new ForkJoinPool(Math.max(1, parallelism));
+        }
+        return pool;
+    }
+
+    // What a walk does with the entries; called from many threads at once. Lines
+    // added to lines are written to the output.
+    interface Visitor {
+        // Every entry, the root included; a directory comes before what is in it
+        void visit(Path path, String name, BasicFileAttributes attrs, int depth, List<String> lines);
+
+        // A directory once everything below it has been walked, with its bytes:
+        // its own size plus that of every entry in it and below
+        default void leave(Path directory, String name, int depth, long bytes, List<String> lines) {
+        }
+    }
+
+    private final String command;
+    private final int maxDepth;
+    private final Visitor visitor;
+    private final BlockingQueue<List<String>> queue = new ArrayBlockingQueue<>(Pipeline.QUEUE_BATCHES * 4);
+    private final AtomicLong entries = new AtomicLong();
+    private List<String> pending = new ArrayList<>(Pipeline.BATCH_SIZE); // guarded by queue
+    private volatile boolean cancelled;
+
+    // Directories deeper than maxDepth below the root are not listed; errors are
+    // reported as lines starting with command
+    TreeWalker(String command, int maxDepth, Visitor visitor) {
+        this.command = command;
+        this.maxDepth = maxDepth;
+        this.visitor = visitor;
+    }
+
+    // Walks root, shown as name, writing the visitor's lines to out as they come;
+    // returns the bytes of everything in it. Stops early once out is abandoned.
+    long walk(Path root, String name, Pipeline.LineSink out) throws Exception {
+        BasicFileAttributes attrs = Files.readAttributes(root, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        List<String> lines = new ArrayList<>();
+        visitor.visit(root, name, attrs, 0, lines);
+        entries.incrementAndGet();
+        for (String line : lines) out.write(line);
+        if (!attrs.isDirectory() || maxDepth <= 0) {
+            Metrics.touched(1);
+            return attrs.size();
+        }
+        ForkJoinTask<Long> walk = pool().submit(() -> {
+            try {
+                long bytes = new Walk(root, name, 0, attrs.size()).invoke();
+                hand(List.of(), true);
+                return bytes;
+            } finally {
+                queue.put(END);
+            }
+        });
+        boolean drained = false;
+        try {
+            List<String> batch;
+            while ((batch = queue.take()) != END) {
+                for (String line : batch) out.write(line);
+            }
+            drained = true;
+        } finally {
+            if (!drained) {
+                // Nobody reads any more, whatever the reason: stop the tasks and
+                // take what they hand over until they are done, so none stays
+                // blocked on the queue and holds a thread of the shared pool
+                cancelled = true;
+                drain();
+            }
+        }
+        Metrics.touched(entries.get());
+        return walk.join();
+    }
+
+    private void drain() {
+        boolean interrupted = Thread.interrupted();
+        while (true) {
+            try {
+                if (queue.take() == END) break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    // Collects the lines of many directories into batches of a pipe's size, so
+    // the reading thread is not woken up for every directory
+    private void hand(List<String> lines, boolean last) {
+        List<String> batch = null;
+        synchronized (queue) {
+            if (!lines.isEmpty()) pending.addAll(lines);
+            if (pending.size() >= Pipeline.BATCH_SIZE || last && !pending.isEmpty()) {
+                batch = pending;
+                pending = new ArrayList<>(Pipeline.BATCH_SIZE);
+            }
+        }
+        if (batch == null || cancelled) return;
+        try {
+            queue.put(batch);
+        } catch (InterruptedException e) {
+            cancelled = true;
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Walks one directory; returns its bytes: its own size, its entries' and
+    // everything below
+    private class Walk extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+
+        private final Path directory;
+        private final String name;
+        private final int depth;
+        private final long size;
+
+        Walk(Path directory, String name, int depth, long size) {
+            this.directory = directory;
+            this.name = name;
+            this.depth = depth;
+            this.size = size;
+        }
+
+        @Override
+        protected Long compute() {
+            if (cancelled) return 0L;
+            long bytes = size;
+            List<String> lines = new ArrayList<>();
+            List<Walk> subtrees = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                SecureDirectoryStream<Path> secure = stream instanceof SecureDirectoryStream
+                        ? (SecureDirectoryStream<Path>) stream : null;
+                for (Path entry : stream) {
+                    String entryName = name.endsWith("/") ? name + entry.getFileName() : name + "/" + entry.getFileName();
+                    BasicFileAttributes attrs;
+                    try {
+                        attrs = secure != null
+                                ? secure.getFileAttributeView(entry.getFileName(), BasicFileAttributeView.class, LinkOption.NOFOLLOW_LINKS).readAttributes()
+                                : Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException e) {
+                        lines.add(command + ": " + entryName + ": " + e);
+                        continue;
+                    }
+                    entries.incrementAndGet();
+                    visitor.visit(entry, entryName, attrs, depth + 1, lines);
+                    if (attrs.isDirectory() && depth + 1 < maxDepth) {
+                        Walk task = new Walk(entry, entryName, depth + 1, attrs.size());
+                        task.fork();
+                        subtrees.add(task);
+                    } else {
+                        bytes += attrs.size();
+                    }
+                }
+            } catch (IOException e) {
+                lines.add(command + ": " + name + ": " + e);
+            }
+            hand(lines, false);
+            for (Walk task : subtrees) {
+                bytes += task.join();
+            }
+            List<String> after = new ArrayList<>(1);
+            visitor.leave(directory, name, depth, bytes, after);
+            hand(after, false);
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.nio.file.Path;
+
+// uniq and distinct. uniq compares each line only with the one before it, so it
+// holds a single line: -c puts the length of each run in front of its line and -d
+// prints only lines that repeat. distinct drops every line seen anywhere before,
+// keeping first occurrences in input order; what it has seen is kept in a
+// LineSet, not in Strings.
+public class Uniq {
+
+    // Options of uniq: -c, -d, then a file; distinct takes only the file
+    static class Options {
+        boolean count;
+        boolean repeated;
+        String file;         // input file instead of the previous stage
+
+        static Options parse(String[] args, int from, boolean flags) {
+            Options o = new Options();
+            for (int i = from; i < args.length; i++) {
+                String a = args[i];
+                if (flags && a.startsWith("-") && a.length() > 1) {
+                    for (char c : a.substring(1).toCharArray()) {
+                        if (c == 'c') o.count = true;
+                        else if (c == 'd') o.repeated = true;
+                        else throw new IllegalArgumentException(args[0] + ": invalid option -- '" + c + "'");
+                    }
+                } else if (o.file == null) {
+                    o.file = a;
+                } else {
+                    throw new IllegalArgumentException("usage: " + args[0] + (flags ? " [-cd]" : "") + " [file]");
+                }
+            }
+            return o;
+        }
+    }
+
+    // Where the lines come from: the previous stage or a file
+    private interface Lines {
+        String read() throws Exception;
+    }
+
+    private interface Body {
+        void run(Lines lines) throws Exception;
+    }
+
+    static void uniq(Options options, Pipeline.Pipe in, Pipeline.LineSink out) throws Exception {
+        open(options, in, lines -> {
+            String previous = lines.read();
+            long run = 1;
+            String line;
+            while (previous != null) {
+                line = lines.read();
+                if (line != null && line.equals(previous)) {
+                    run++;
+                    continue;
+                }
+                if (!options.repeated || run > 1) {
+                    out.write(options.count ? String.format("%7d %s", run, previous) : previous);
+                }
+                previous = line;
+                run = 1;
+            }
+        });
+    }
+
+    static void distinct(Options options, Pipeline.Pipe in, Pipeline.LineSink out) throws Exception {
+        open(options, in, lines -> {
+            LineSet seen = new LineSet();
+            String line;
+            while ((line = lines.read()) != null) {
+                if (seen.add(line)) out.write(line);
+            }
+        });
+    }
+
+    private static void open(Options options, Pipeline.Pipe in, Body body) throws Exception {
+        if (options.file == null) {
+            body.run(in::read);
+            return;
+        }
+        Path file = CLI.existing(options.file);
+        Metrics.touched(1);
+        Metrics.read(file.toFile().length());
+        try (BufferedReader reader = new BufferedReader(new FileReader(file.toFile()))) {
+            body.run(reader::readLine);
+        }
+    }
+}
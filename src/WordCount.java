@@ -0,0 +1,188 @@
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+// Counts lines, words and bytes. A file is mapped in regions that are counted in
+// parallel; regions split anywhere, so a word that spans a boundary is counted
+// once when the regions are merged. Piped lines are counted as they arrive.
+public class WordCount {
+    // Files at least this big are counted in parallel; 0 disables it
+    static long parallelThreshold = Long.getLong("cli.wc.parallel", 1024 * 1024);
+    static int parallelism = Integer.getInteger("cli.wc.threads", Runtime.getRuntime().availableProcessors());
+    static int maxRegion = Integer.getInteger("cli.wc.region", 64 * 1024 * 1024); // bytes mapped at once
+    private static ForkJoinPool pool;
+
+    private static synchronized ForkJoinPool pool() {
+        if (pool == null || pool.getParallelism() != Math.max(1, parallelism)) {
+            pool = new ForkJoinPool(Math.max(1, parallelism));
+        }
+        return pool;
+    }
+
+    // Options of the wc command: -l, -w, -c and files; no flag means all three
+    static class Options {
+        boolean lines;
+        boolean words;
+        boolean bytes;
+        final List<String> files = new ArrayList<>();
+
+        static Options parse(String[] args, int from) {
+            Options o = new Options();
+            for (int i = from; i < args.length; i++) {
+                String a = args[i];
+                if (a.startsWith("-") && a.length() > 1) {
+                    for (char c : a.substring(1).toCharArray()) {
+                        if (c == 'l') o.lines = true;
+                        else if (c == 'w') o.words = true;
+                        else if (c == 'c') o.bytes = true;
+                        else throw new IllegalArgumentException("wc: invalid option -- '" + c + "'");
+                    }
+                } else {
+                    o.files.add(a);
+                }
+            }
+            if (!o.lines && !o.words && !o.bytes) {
+                o.lines = o.words = o.bytes = true;
+            }
+            return o;
+        }
+    }
+
+    // Counts of a file, a region of one, or piped input
+    static class Counts {
+        long lines;
+        long words;
+        long bytes;
+        boolean startsInWord; // first byte is part of a word
+        boolean endsInWord;   // last byte is part of a word
+
+        // Adds the counts of the region that follows this one
+        void merge(Counts next) {
+            if (next.bytes == 0) return;
+            words += next.words;
+            if (bytes > 0 && endsInWord && next.startsInWord) words--; // one word across the boundary
+            if (bytes == 0) startsInWord = next.startsInWord;
+            lines += next.lines;
+            bytes += next.bytes;
+            endsInWord = next.endsInWord;
+        }
+
+        String format(Options options, String name) {
+            StringBuilder sb = new StringBuilder();
+            if (options.lines) sb.append(lines);
+            if (options.words) sb.append(sb.length() > 0 ? " " : "").append(words);
+            if (options.bytes) sb.append(sb.length() > 0 ? " " : "").append(bytes);
+            if (name != null) sb.append(' ').append(name);
+            return sb.toString();
+        }
+    }
+
+    static boolean isSpace(int c) {
+        return c == ' ' || c == '\n' || c == '\t' || c == '\r' || c == 0x0b || c == '\f';
+    }
+
+    // Counts a file, splitting it into regions when it is large enough
+    static Counts count(Path file) throws Exception {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            Metrics.touched(1);
+            Metrics.read(size);
+            if (size == 0) return new Counts();
+            if (parallelThreshold <= 0 || size < parallelThreshold) {
+                // one region after another; a mapping cannot be larger than 2 GB
+                Counts total = new Counts();
+                long region = Math.max(1, maxRegion);
+                for (long start = 0; start < size; start += region) {
+                    total.merge(count(channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(region, size - start))));
+                }
+                return total;
+            }
+            int regions = Math.max(1, parallelism) * 4;
+            long regionSize = Math.min(Math.max(1, maxRegion), Math.max(64 * 1024, size / regions + 1));
+            List<Future<Counts>> results = new ArrayList<>();
+            ForkJoinPool pool = pool();
+            for (long start = 0; start < size; start += regionSize) {
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(regionSize, size - start));
+                results.add(pool.submit(() -> count(region)));
+            }
+            Counts total = new Counts();
+            try {
+                for (Future<Counts> result : results) {
+                    total.merge(result.get());
+                }
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception) throw (Exception) cause;
+                throw e;
+            }
+            return total;
+        }
+    }
+
+    // Counts one mapped region without allocating
+    static Counts count(MappedByteBuffer region) {
+        int limit = region.limit();
+        long lines = 0;
+        long words = 0;
+        boolean inWord = false;
+        for (int i = 0; i < limit; i++) {
+            byte b = region.get(i);
+            if (b == '\n') lines++;
+            if (isSpace(b)) {
+                inWord = false;
+            } else if (!inWord) {
+                inWord = true;
+                words++;
+            }
+        }
+        Counts counts = new Counts();
+        counts.lines = lines;
+        counts.words = words;
+        counts.bytes = limit;
+        counts.startsInWord = limit > 0 && !isSpace(region.get(0));
+        counts.endsInWord = inWord;
+        return counts;
+    }
+
+    // Counts the lines of the previous stage; each line is counted with its '\n'
+    // and its bytes as UTF-8
+    static Counts count(Pipeline.Pipe in) throws Exception {
+        Counts counts = new Counts();
+        String line;
+        while ((line = in.read()) != null) {
+            counts.lines++;
+            counts.bytes += utf8Length(line) + 1;
+            boolean inWord = false;
+            for (int i = 0; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (isSpace(c)) {
+                    inWord = false;
+                } else if (!inWord) {
+                    inWord = true;
+                    counts.words++;
+                }
+            }
+        }
+        return counts;
+    }
+
+    static long utf8Length(String s) {
+        long n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) n++;
+            else if (c < 0x800) n += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                n += 4;
+                i++;
+            } else n += 3;
+        }
+        return n;
+    }
+}